@@ -1,5 +1,6 @@
 package jenkins.plugins.threema;
 
+import hudson.matrix.MatrixBuild;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
@@ -26,7 +27,7 @@ public class ActiveNotifier implements FineGrainedNotifier {
     }
 
     public void started(AbstractBuild build) {
-        getThreema(build).publish(build);
+        getThreema(build).publishAsync(build, null);
     }
 
     public void finalized(AbstractBuild r) {
@@ -42,6 +43,9 @@ public class ActiveNotifier implements FineGrainedNotifier {
             } while (previousBuild != null && previousBuild.getResult() == Result.ABORTED);
         }
         Result previousResult = (previousBuild != null) ? previousBuild.getResult() : Result.SUCCESS;
+        // always taken, so that the collected configuration results do not pile up
+        String summary = notifier.getAggregateMatrix() && r instanceof MatrixBuild
+                ? MatrixAggregator.complete((MatrixBuild) r) : null;
         if ((result == Result.ABORTED && notifier.getNotifyAborted())
                 || (result == Result.FAILURE // notify only on
                 // single failed
@@ -57,7 +61,7 @@ public class ActiveNotifier implements FineGrainedNotifier {
                 && notifier.getNotifyBackToNormal())
                 || (result == Result.SUCCESS && notifier.getNotifySuccess())
                 || (result == Result.UNSTABLE && notifier.getNotifyUnstable())) {
-            getThreema(r).publish(r);
+            getThreema(r).publishAsync(r, summary);
         }
     }
 }
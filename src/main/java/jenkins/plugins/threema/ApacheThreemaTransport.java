@@ -0,0 +1,265 @@
+package jenkins.plugins.threema;
+
+import hudson.ProxyConfiguration;
+import hudson.init.Terminator;
+import jenkins.model.Jenkins;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Apache HttpClient 4 transport sharing one pooled client across all sends, so keep-alive connections
+ * and TLS sessions to the gateway are reused instead of being set up for every recipient. On the
+ * controller the Jenkins proxy configuration applies; {@link #direct()} is for agents, which have no
+ * Jenkins instance to ask and connect directly. The shared clients are closed when Jenkins shuts down,
+ * after {@link ThreemaDispatcher} has drained its queue.
+ */
+public class ApacheThreemaTransport implements ThreemaTransport {
+
+    private static final Logger logger = Logger.getLogger(ApacheThreemaTransport.class.getName());
+
+    private static final int TIMEOUT_MILLIS = 10000;
+    static final int MAX_CONNECTIONS = Integer.getInteger(ApacheThreemaTransport.class.getName() + ".maxConnections", 20);
+
+    private static final ApacheThreemaTransport DEFAULT = new ApacheThreemaTransport(StandardThreemaService.THREEMA_API_URL);
+    private static final ApacheThreemaTransport DIRECT = new ApacheThreemaTransport(StandardThreemaService.THREEMA_API_URL, false);
+
+    private final String endpoint;
+    private final boolean jenkinsProxy;
+    private volatile CloseableHttpClient client;
+
+    public ApacheThreemaTransport(String endpoint) {
+        this(endpoint, true);
+    }
+
+    /**
+     * @param jenkinsProxy whether the proxy configuration of the Jenkins controller applies; must be
+     *                     {@code false} outside the controller JVM
+     */
+    public ApacheThreemaTransport(String endpoint, boolean jenkinsProxy) {
+        this.endpoint = endpoint;
+        this.jenkinsProxy = jenkinsProxy;
+    }
+
+    public static ApacheThreemaTransport get() {
+        return DEFAULT;
+    }
+
+    /** The transport for agent JVMs: never looks at the Jenkins proxy configuration. */
+    public static ApacheThreemaTransport direct() {
+        return DIRECT;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public ThreemaResponse send(String from, String to, String text, String secret) throws IOException {
+        URL url = new URL(endpoint);
+        RequestBuilder requestBuilder = RequestBuilder.post(toUri(url));
+        requestBuilder.setCharset(StandardCharsets.UTF_8);
+        requestBuilder.addParameter("from", from);
+        requestBuilder.addParameter("to", to);
+        requestBuilder.addParameter("text", text);
+        requestBuilder.addParameter("secret", secret);
+        return execute(requestBuilder, url);
+    }
+
+    /** Looks up the public key of a Threema ID, returned hex encoded in the response body. */
+    public ThreemaResponse lookupPublicKey(String from, String secret, String id) throws IOException {
+        URL url = new URL(getBaseUrl() + "/pubkeys/" + id);
+        RequestBuilder requestBuilder = RequestBuilder.get(toUri(url));
+        requestBuilder.addParameter("from", from);
+        requestBuilder.addParameter("secret", secret);
+        return execute(requestBuilder, url);
+    }
+
+    /** Looks up the remaining credits of a gateway ID, returned as a number in the response body. */
+    public ThreemaResponse lookupCredits(String from, String secret) throws IOException {
+        URL url = new URL(getBaseUrl() + "/credits");
+        RequestBuilder requestBuilder = RequestBuilder.get(toUri(url));
+        requestBuilder.addParameter("from", from);
+        requestBuilder.addParameter("secret", secret);
+        return execute(requestBuilder, url);
+    }
+
+    /**
+     * Uploads an already encrypted blob. {@code multipartBody} must be a complete
+     * {@code multipart/form-data} body with a single {@code blob} part; it is streamed, not buffered.
+     * On success the body of the response is the hex encoded blob ID. The blob is persistent: it is not
+     * deleted after the first download, so it can be sent to several recipients and reused.
+     */
+    public ThreemaResponse uploadBlob(String from, String secret, InputStream multipartBody, long length, String boundary) throws IOException {
+        URL url = new URL(getBaseUrl() + "/upload_blob");
+        RequestBuilder requestBuilder = RequestBuilder.post(toUri(url));
+        // with an entity present the parameters go into the query string
+        requestBuilder.addParameter("from", from);
+        requestBuilder.addParameter("secret", secret);
+        requestBuilder.addParameter("persist", "1");
+        requestBuilder.setHeader("Content-Type", "multipart/form-data; boundary=" + boundary);
+        requestBuilder.setEntity(new InputStreamEntity(multipartBody, length));
+        return execute(requestBuilder, url);
+    }
+
+    /** Sends an end-to-end encrypted message box. */
+    public ThreemaResponse sendE2E(String from, String to, String nonce, String box, String secret) throws IOException {
+        URL url = new URL(getBaseUrl() + "/send_e2e");
+        RequestBuilder requestBuilder = RequestBuilder.post(toUri(url));
+        requestBuilder.addParameter("from", from);
+        requestBuilder.addParameter("to", to);
+        requestBuilder.addParameter("nonce", nonce);
+        requestBuilder.addParameter("box", box);
+        requestBuilder.addParameter("secret", secret);
+        return execute(requestBuilder, url);
+    }
+
+    private String getBaseUrl() {
+        return endpoint.substring(0, endpoint.lastIndexOf('/'));
+    }
+
+    private static URI toUri(URL url) throws IOException {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid gateway endpoint " + url, e);
+        }
+    }
+
+    ThreemaResponse execute(RequestBuilder requestBuilder, URL url) throws IOException {
+        HttpHost httpHost = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
+        RequestConfig.Builder configBuilder = RequestConfig.custom()
+                .setConnectTimeout(TIMEOUT_MILLIS)
+                .setSocketTimeout(TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(TIMEOUT_MILLIS);
+        HttpClientContext context = HttpClientContext.create();
+
+        ProxyConfiguration globalProxy = jenkinsProxy ? getJenkinsProxy() : null;
+        if (globalProxy != null && isProxyRequired(url, ProxyConfiguration.getNoProxyHostPatterns(globalProxy.getNoProxyHost()))) {
+            setupProxy(globalProxy, configBuilder, context);
+        }
+        requestBuilder.setConfig(configBuilder.build());
+
+        try (CloseableHttpResponse response = getClient().execute(httpHost, requestBuilder.build(), context)) {
+            HttpEntity entity = response.getEntity();
+            String body = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8).trim() : "";
+            return new ThreemaResponse(response.getStatusLine().getStatusCode(), body);
+        }
+    }
+
+    // kept apart so that Jenkins is not even loaded where it does not exist
+    private static ProxyConfiguration getJenkinsProxy() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins != null ? jenkins.proxy : null;
+    }
+
+    private CloseableHttpClient getClient() {
+        CloseableHttpClient c = client;
+        if (c == null) {
+            synchronized (this) {
+                c = client;
+                if (c == null) {
+                    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                            RegistryBuilder.<ConnectionSocketFactory>create()
+                                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                                    .register("https", new SSLConnectionSocketFactory(SSLContexts.createDefault()))
+                                    .build(),
+                            null, null, null, 60, TimeUnit.SECONDS);
+                    connectionManager.setMaxTotal(MAX_CONNECTIONS);
+                    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+                    connectionManager.setValidateAfterInactivity(TIMEOUT_MILLIS);
+                    c = HttpClients.custom()
+                            .setConnectionManager(connectionManager)
+                            .evictIdleConnections(30, TimeUnit.SECONDS)
+                            .build();
+                    client = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /** Closes the pooled client; the next send opens a new one. */
+    public synchronized void close() {
+        CloseableHttpClient c = client;
+        client = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Could not close the Threema HTTP client", e);
+            }
+        }
+    }
+
+    @Terminator(requires = ThreemaDispatcher.DRAINED)
+    public static void closeOnShutdown() {
+        DEFAULT.close();
+        DIRECT.close();
+    }
+
+    private void setupProxy(ProxyConfiguration proxy, RequestConfig.Builder configBuilder, HttpClientContext context) {
+        HttpHost proxyHost = new HttpHost(proxy.name, proxy.port);
+        configBuilder.setProxy(proxyHost);
+
+        String username = proxy.getUserName();
+        String password = proxy.getPassword();
+        // Consider it to be passed if username specified. Sufficient?
+        if (username != null && !username.isEmpty()) {
+            logger.fine("Using proxy authentication (user=" + username + ")");
+            BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(
+                    new AuthScope(proxyHost.getHostName(), proxy.port),
+                    new UsernamePasswordCredentials(username, password));
+            context.setCredentialsProvider(credentialsProvider);
+        }
+    }
+
+    static boolean isProxyRequired(URL url, List<Pattern> noProxyHosts) {
+        for (Pattern p : noProxyHosts) {
+            if (p.matcher(url.getHost()).matches()) return false;
+        }
+        return true;
+    }
+
+    static boolean isProxyRequired(String endpoint, List<Pattern> noProxyHosts) {
+        try {
+            return isProxyRequired(new URL(endpoint), noProxyHosts);
+        } catch (MalformedURLException e) {
+            logger.log(
+                    Level.WARNING,
+                    "A malformed URL [" + endpoint + "] is defined as endpoint, please check your settings");
+            // default behavior : proxy still activated
+            return true;
+        }
+    }
+}
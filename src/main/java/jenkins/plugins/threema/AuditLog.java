@@ -0,0 +1,381 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only log of every send attempt in {@code threema-audit/}. Attempts are queued in memory and
+ * appended in batches every few seconds to a plain segment per day ({@code audit-2021-06-01.tsv}).
+ * <p>
+ * Segments of past days are rotated into a gzip file made of independent members of
+ * {@link #BLOCK_RECORDS} lines each, plus a sparse index ({@code .idx}) with the offset of each member
+ * and the members each job and recipient appears in. Queries read the index and decompress only the
+ * members that can match.
+ */
+@Extension
+public class AuditLog extends PeriodicWork {
+
+    private static final Logger logger = Logger.getLogger(AuditLog.class.getName());
+
+    static final int BLOCK_RECORDS = 256;
+    static final int RETENTION_DAYS = Integer.getInteger(AuditLog.class.getName() + ".retentionDays", 90);
+    private static final String PREFIX = "audit-";
+
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private LocalDate rotatedOn;
+
+    public static AuditLog get() {
+        return ExtensionList.lookupSingleton(AuditLog.class);
+    }
+
+    /** Records one send attempt that started at {@code started}; {@code run} is {@code null} for messages not about a build. */
+    void record(Run<?, ?> run, String recipient, String from, String outcome, long started, Long messageId) {
+        long now = System.currentTimeMillis();
+        pending.add(new Entry(now,
+                run == null ? "" : run.getParent().getFullName(),
+                run == null ? "" : String.valueOf(run.getNumber()),
+                recipient, from, outcome, now - started,
+                messageId == null ? "" : String.format("%016x", messageId)));
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 5 * 1000L;
+    }
+
+    @Override
+    protected void doRun() {
+        flush();
+    }
+
+    @Terminator
+    public static void flushOnShutdown() {
+        get().flush();
+    }
+
+    synchronized void flush() {
+        File dir = getDirectory();
+        LocalDate today = LocalDate.now();
+        if (!pending.isEmpty()) {
+            // attempts go to the segment of the day they are flushed, a rotated segment is never reopened
+            try {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Could not create " + dir);
+                }
+                try (Writer out = new OutputStreamWriter(Files.newOutputStream(segment(dir, today).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8)) {
+                    for (Entry entry; (entry = pending.poll()) != null; ) {
+                        out.write(entry.toLine());
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write the Threema audit log", e);
+            }
+        }
+        if (!today.equals(rotatedOn)) {
+            rotate(dir, today);
+            rotatedOn = today;
+        }
+    }
+
+    /** Compresses the plain segments of past days and drops compressed ones past the retention. */
+    private void rotate(File dir, LocalDate today) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && !name.endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            LocalDate day;
+            try {
+                day = LocalDate.parse(name.substring(PREFIX.length(), PREFIX.length() + 10));
+            } catch (RuntimeException e) {
+                continue;
+            }
+            try {
+                if (name.endsWith(".tsv") && day.isBefore(today)) {
+                    compress(file, new File(dir, PREFIX + day + ".tsv.gz"), new File(dir, PREFIX + day + ".idx"));
+                } else if (day.isBefore(today.minusDays(RETENTION_DAYS))) {
+                    Files.delete(file.toPath());
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not rotate " + file, e);
+            }
+        }
+    }
+
+    private static void compress(File plain, File gz, File idx) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        Map<String, TreeSet<Integer>> keys = new TreeMap<>();
+        File tmp = new File(gz.getPath() + ".tmp");
+        try (BufferedReader in = Files.newBufferedReader(plain.toPath(), StandardCharsets.UTF_8);
+             FileOutputStream file = new FileOutputStream(tmp)) {
+            String line = in.readLine();
+            while (line != null) {
+                int block = offsets.size();
+                offsets.add(file.getChannel().position());
+                // one gzip member per block, so that a block can be read on its own
+                OutputStream member = new GZIPOutputStream(new NonClosingOutputStream(file));
+                for (int n = 0; n < BLOCK_RECORDS && line != null; n++, line = in.readLine()) {
+                    member.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    Entry entry = Entry.parse(line);
+                    if (entry != null) {
+                        keys.computeIfAbsent("job\t" + entry.job, k -> new TreeSet<>()).add(block);
+                        keys.computeIfAbsent("to\t" + entry.recipient, k -> new TreeSet<>()).add(block);
+                    }
+                }
+                member.close();
+            }
+        }
+        StringBuilder index = new StringBuilder();
+        for (int i = 0; i < offsets.size(); i++) {
+            index.append("block\t").append(i).append('\t').append(offsets.get(i)).append('\n');
+        }
+        for (Map.Entry<String, TreeSet<Integer>> key : keys.entrySet()) {
+            index.append(key.getKey()).append('\t');
+            StringBuilder blocks = new StringBuilder();
+            for (int block : key.getValue()) {
+                blocks.append(blocks.length() == 0 ? "" : ",").append(block);
+            }
+            index.append(blocks).append('\n');
+        }
+        Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(idx.toPath(), index.toString().getBytes(StandardCharsets.UTF_8));
+        Files.delete(plain.toPath());
+    }
+
+    /**
+     * The latest {@code limit} attempts matching the job full name and recipient, newest first. A
+     * {@code null} criterion matches everything.
+     */
+    public List<Entry> query(String job, String recipient, int limit) {
+        flush();
+        List<Entry> result = new ArrayList<>();
+        File[] files = getDirectory().listFiles((d, name) -> name.startsWith(PREFIX)
+                && (name.endsWith(".tsv") || name.endsWith(".tsv.gz")));
+        if (files == null) {
+            return result;
+        }
+        Arrays.sort(files, Collections.reverseOrder());
+        for (File file : files) {
+            List<Entry> matches = new ArrayList<>();
+            try {
+                if (file.getName().endsWith(".gz")) {
+                    querySegment(file, job, recipient, matches);
+                } else {
+                    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                        addIfMatching(line, job, recipient, matches);
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not read " + file, e);
+            }
+            Collections.reverse(matches);
+            for (Entry entry : matches) {
+                result.add(entry);
+                if (result.size() >= limit) {
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void querySegment(File gz, String job, String recipient, List<Entry> matches) throws IOException {
+        File idx = new File(gz.getParentFile(), gz.getName().replace(".tsv.gz", ".idx"));
+        List<Long> offsets = new ArrayList<>();
+        TreeSet<Integer> jobBlocks = null;
+        TreeSet<Integer> recipientBlocks = null;
+        for (String line : Files.readAllLines(idx.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 3) {
+                continue;
+            }
+            if (fields[0].equals("block")) {
+                offsets.add(Long.parseLong(fields[2]));
+            } else if (fields[0].equals("job") && fields[1].equals(job)) {
+                jobBlocks = parseBlocks(fields[2]);
+            } else if (fields[0].equals("to") && fields[1].equals(recipient)) {
+                recipientBlocks = parseBlocks(fields[2]);
+            }
+        }
+        if ((job != null && jobBlocks == null) || (recipient != null && recipientBlocks == null)) {
+            return;
+        }
+        TreeSet<Integer> blocks = new TreeSet<>();
+        for (int i = 0; i < offsets.size(); i++) {
+            blocks.add(i);
+        }
+        if (jobBlocks != null) {
+            blocks.retainAll(jobBlocks);
+        }
+        if (recipientBlocks != null) {
+            blocks.retainAll(recipientBlocks);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(gz, "r")) {
+            for (int block : blocks) {
+                long start = offsets.get(block);
+                long end = block + 1 < offsets.size() ? offsets.get(block + 1) : in.length();
+                byte[] member = new byte[(int) (end - start)];
+                in.seek(start);
+                in.readFully(member);
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(new ByteArrayInputStream(member)), StandardCharsets.UTF_8))) {
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        addIfMatching(line, job, recipient, matches);
+                    }
+                }
+            }
+        }
+    }
+
+    private static TreeSet<Integer> parseBlocks(String list) {
+        TreeSet<Integer> blocks = new TreeSet<>();
+        for (String block : list.split(",")) {
+            blocks.add(Integer.parseInt(block));
+        }
+        return blocks;
+    }
+
+    private static void addIfMatching(String line, String job, String recipient, List<Entry> matches) {
+        Entry entry = Entry.parse(line);
+        if (entry != null && (job == null || job.equals(entry.job)) && (recipient == null || recipient.equals(entry.recipient))) {
+            matches.add(entry);
+        }
+    }
+
+    private static File segment(File dir, LocalDate day) {
+        return new File(dir, PREFIX + day + ".tsv");
+    }
+
+    private static File getDirectory() {
+        return new File(Jenkins.get().getRootDir(), "threema-audit");
+    }
+
+    public static final class Entry {
+        private final long timestamp;
+        private final String job;
+        private final String build;
+        private final String recipient;
+        private final String from;
+        private final String outcome;
+        private final long latency;
+        private final String messageId;
+
+        Entry(long timestamp, String job, String build, String recipient, String from, String outcome,
+              long latency, String messageId) {
+            this.timestamp = timestamp;
+            this.job = job;
+            this.build = build;
+            this.recipient = recipient;
+            this.from = from;
+            this.outcome = outcome;
+            this.latency = latency;
+            this.messageId = messageId;
+        }
+
+        static Entry parse(String line) {
+            String[] f = line.split("\t", -1);
+            if (f.length != 8) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(f[0]), f[1], f[2], f[3], f[4], f[5], Long.parseLong(f[6]), f[7]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String toLine() {
+            return timestamp + "\t" + clean(job) + "\t" + build + "\t" + clean(recipient) + "\t" + clean(from)
+                    + "\t" + clean(outcome) + "\t" + latency + "\t" + messageId + "\n";
+        }
+
+        private static String clean(String s) {
+            return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ');
+        }
+
+        public Date getTimestamp() {
+            return new Date(timestamp);
+        }
+
+        public String getJob() {
+            return job;
+        }
+
+        public String getBuild() {
+            return build;
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getOutcome() {
+            return outcome;
+        }
+
+        public long getLatency() {
+            return latency;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+    }
+
+    /** Lets each gzip member finish without closing the segment file. */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
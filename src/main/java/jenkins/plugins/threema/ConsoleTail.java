@@ -0,0 +1,79 @@
+package jenkins.plugins.threema;
+
+import hudson.console.ConsoleNote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Reads the last lines of a console log by seeking backwards from the end in fixed-size blocks. At
+ * most {@link #MAX_WINDOW_BYTES} are read, whatever the size of the log.
+ */
+final class ConsoleTail {
+
+    static final int BLOCK_SIZE = 8192;
+    static final int MAX_WINDOW_BYTES = 64 * 1024;
+
+    private ConsoleTail() {
+    }
+
+    static String read(File log, Charset charset, int lines) throws IOException {
+        if (lines <= 0 || !log.isFile()) {
+            return "";
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+            long end = raf.length();
+            long start = findWindowStart(raf, end, lines * 2);
+            boolean truncatedHead = false;
+            if (start > 0) {
+                raf.seek(start - 1);
+                truncatedHead = raf.read() != '\n';
+            }
+            byte[] window = new byte[(int) (end - start)];
+            raf.seek(start);
+            raf.readFully(window);
+            return lastRelevantLines(new String(window, charset), lines, truncatedHead);
+        }
+    }
+
+    /**
+     * Walks backwards until {@code rawLines} line breaks have been seen or the window cap is reached.
+     */
+    private static long findWindowStart(RandomAccessFile raf, long end, int rawLines) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        long pos = end;
+        int newlines = 0;
+        while (pos > 0 && end - pos < MAX_WINDOW_BYTES) {
+            int len = (int) Math.min(Math.min(BLOCK_SIZE, pos), MAX_WINDOW_BYTES - (end - pos));
+            pos -= len;
+            raf.seek(pos);
+            raf.readFully(block, 0, len);
+            for (int i = len - 1; i >= 0; i--) {
+                // the newline terminating the last line does not count
+                if (block[i] == '\n' && pos + i < end - 1 && ++newlines > rawLines) {
+                    return pos + i + 1;
+                }
+            }
+        }
+        return pos;
+    }
+
+    private static String lastRelevantLines(String window, int lines, boolean truncatedHead) {
+        String[] raw = window.split("\n");
+        Deque<String> kept = new ArrayDeque<>(lines);
+        // a window cut by the byte cap starts in the middle of a line
+        int first = truncatedHead ? 1 : 0;
+        for (int i = raw.length - 1; i >= first && kept.size() < lines; i--) {
+            String line = ConsoleNote.removeNotes(raw[i]).trim();
+            if (line.isEmpty() || line.startsWith("Finished: ")) {
+                continue;
+            }
+            kept.addFirst(line);
+        }
+        return String.join("\n", kept);
+    }
+}
@@ -0,0 +1,221 @@
+package jenkins.plugins.threema;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts messages, bytes and estimated gateway credits per job, folder and gateway ID. Sends only bump
+ * {@link LongAdder}s; the totals are written to {@code threema-credits.tsv} every few minutes and on
+ * shutdown, and the remaining balance of the default gateway ID is fetched in the background, never on the send path.
+ */
+@Extension
+public class CreditLedger extends AsyncPeriodicWork {
+
+    private static final Logger logger = Logger.getLogger(CreditLedger.class.getName());
+
+    /** The gateway charges one credit per message, simple or end-to-end. */
+    static final int CREDITS_PER_MESSAGE = 1;
+    private static final long BALANCE_REFRESH_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+    private volatile long balance = -1;
+    private volatile long balanceFetched;
+    private volatile boolean lowBalanceAlerted;
+
+    public CreditLedger() {
+        super("Threema credit accounting");
+    }
+
+    public static CreditLedger get() {
+        return ExtensionList.lookupSingleton(CreditLedger.class);
+    }
+
+    /** Records one delivered message. {@code jobFullName} is {@code null} for messages not about a job. */
+    void record(String jobFullName, String gatewayId, int bytes) {
+        if (jobFullName != null) {
+            add("job", jobFullName, bytes);
+            int slash = jobFullName.lastIndexOf('/');
+            add("folder", slash > 0 ? jobFullName.substring(0, slash) : "", bytes);
+        }
+        add("gateway", gatewayId, bytes);
+    }
+
+    private void add(String kind, String name, int bytes) {
+        Counters c = counters.computeIfAbsent(kind + ':' + name, k -> new Counters());
+        c.messages.increment();
+        c.bytes.add(bytes);
+        c.credits.add(CREDITS_PER_MESSAGE);
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public long getBalanceFetched() {
+        return balanceFetched;
+    }
+
+    /** The {@code limit} keys of the given kind ({@code job}, {@code folder}, {@code gateway}) with the most credits. */
+    public List<Map.Entry<String, Counters>> getTop(String kind, int limit) {
+        List<Map.Entry<String, Counters>> result = new ArrayList<>();
+        String prefix = kind + ':';
+        for (Map.Entry<String, Counters> e : counters.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey().substring(prefix.length()), e.getValue()));
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.getValue().getCredits(), a.getValue().getCredits()));
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(5);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        load();
+        flush();
+        if (System.currentTimeMillis() - balanceFetched >= BALANCE_REFRESH_MILLIS) {
+            refreshBalance();
+        }
+    }
+
+    @Terminator(requires = ThreemaDispatcher.DRAINED)
+    public static void flushOnShutdown() {
+        CreditLedger ledger = get();
+        // the totals on disk must be counted in before the file is rewritten
+        ledger.load();
+        ledger.flush();
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    continue;
+                }
+                Counters c = counters.computeIfAbsent(fields[0], k -> new Counters());
+                c.messages.add(Long.parseLong(fields[1]));
+                c.bytes.add(Long.parseLong(fields[2]));
+                c.credits.add(Long.parseLong(fields[3]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Could not read " + file, e);
+        }
+    }
+
+    synchronized void flush() {
+        if (counters.isEmpty()) {
+            return;
+        }
+        File file = getFile();
+        try {
+            AtomicFileWriter writer = new AtomicFileWriter(file.toPath(), StandardCharsets.UTF_8);
+            try {
+                for (Map.Entry<String, Counters> e : counters.entrySet()) {
+                    Counters c = e.getValue();
+                    writer.write(e.getKey() + '\t' + c.getMessages() + '\t' + c.getBytes() + '\t' + c.getCredits() + '\n');
+                }
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+
+    private void refreshBalance() {
+        ThreemaNotifier.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(ThreemaNotifier.DescriptorImpl.class);
+        if (descriptor.getCredentialsId() == null) {
+            return;
+        }
+        StandardUsernamePasswordCredentials credentials = CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(
+                        StandardUsernamePasswordCredentials.class, Jenkins.get(), ACL.SYSTEM, Collections.emptyList()),
+                CredentialsMatchers.withId(descriptor.getCredentialsId()));
+        if (credentials == null) {
+            return;
+        }
+        try {
+            ThreemaResponse response = ApacheThreemaTransport.get().lookupCredits(
+                    credentials.getUsername(), credentials.getPassword().getPlainText());
+            if (!response.isSuccess()) {
+                logger.warning("Could not fetch Threema credit balance: " + response);
+                return;
+            }
+            balance = Long.parseLong(response.getBody());
+            balanceFetched = System.currentTimeMillis();
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Could not fetch Threema credit balance", e);
+            return;
+        }
+
+        int threshold = descriptor.getLowCreditThreshold();
+        if (threshold <= 0 || balance > threshold) {
+            lowBalanceAlerted = false;
+        } else if (!lowBalanceAlerted && descriptor.getRecipient() != null) {
+            lowBalanceAlerted = new StandardThreemaService(descriptor.getCredentialsId(), descriptor.getRecipient())
+                    .publishText("Threema gateway ID " + credentials.getUsername() + " is low on credits: " + balance + " left");
+        }
+    }
+
+    private static File getFile() {
+        return new File(Jenkins.get().getRootDir(), "threema-credits.tsv");
+    }
+
+    public static final class Counters {
+        final LongAdder messages = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder credits = new LongAdder();
+
+        public long getMessages() {
+            return messages.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public long getCredits() {
+            return credits.sum();
+        }
+    }
+}
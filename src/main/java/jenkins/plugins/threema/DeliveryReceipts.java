@@ -0,0 +1,327 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import jenkins.model.TransientActionFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Message IDs the gateway returns, recorded per build and updated by incoming delivery receipts.
+ * <p>
+ * Each build gets a {@code threema-receipts.bin} of fixed size records: the 8 byte message ID, the
+ * {@link Status} and the recipient. The IDs of recently sent messages are kept in a {@link LongIndex}
+ * pointing at their record, so a receipt is applied with one lookup and one byte written. Pages of old
+ * builds map the file instead of keeping anything in memory.
+ * <p>
+ * Which build a message ID belongs to is also appended to {@code threema-sent.log} in the Jenkins home
+ * directory, which keeps the last {@link #INDEX_CAPACITY} to twice as many sends. After a restart a
+ * receipt for an unknown ID is looked up there, and the receipts file of that build is read back into
+ * the index.
+ */
+public final class DeliveryReceipts {
+
+    private static final Logger logger = Logger.getLogger(DeliveryReceipts.class.getName());
+
+    static final String FILE_NAME = "threema-receipts.bin";
+    private static final int ID_BYTES = 8;
+    private static final int RECORD_BYTES = ID_BYTES + 1 + 1 + ID_BYTES;
+    private static final int INDEX_CAPACITY = Integer.getInteger(DeliveryReceipts.class.getName() + ".indexCapacity", 1 << 16);
+
+    private static final LongIndex<Location> INDEX = new LongIndex<>(INDEX_CAPACITY);
+    static final String SENT_LOG_NAME = "threema-sent.log";
+    // build of each message ID in the sent log, read on the first receipt the index does not know
+    private static LongIndex<String> sentBuilds;
+    private static int sentLogLines = -1;
+
+    /** Ordinals match the status codes of Threema delivery receipts. */
+    public enum Status {
+        SENT, DELIVERED, READ, ACKNOWLEDGED, DECLINED;
+
+        public String getDisplayName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private DeliveryReceipts() {
+    }
+
+    /** Parses the hex message ID of a successful send, {@code null} if the body is not one. */
+    static Long parseMessageId(String body) {
+        try {
+            String hex = body == null ? "" : body.trim();
+            return hex.length() == 2 * ID_BYTES ? Long.parseUnsignedLong(hex, 16) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static synchronized void record(Run<?, ?> run, String recipient, long messageId) {
+        File file = new File(run.getRootDir(), FILE_NAME);
+        byte[] to = recipient.getBytes(StandardCharsets.US_ASCII);
+        int length = Math.min(to.length, ID_BYTES);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+        record.putLong(messageId).put((byte) Status.SENT.ordinal()).put((byte) length).put(to, 0, length);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long offset = out.length() - out.length() % RECORD_BYTES;
+            out.seek(offset);
+            out.write(record.array());
+            INDEX.put(messageId, new Location(file, offset));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not record Threema message ID in " + file, e);
+            return;
+        }
+        logSent(messageId, run.getExternalizableId());
+    }
+
+    private static void logSent(long messageId, String runId) {
+        File log = new File(Jenkins.get().getRootDir(), SENT_LOG_NAME);
+        if (sentLogLines < 0) {
+            sentLogLines = countLines(log);
+        }
+        try {
+            if (sentLogLines >= INDEX_CAPACITY) {
+                // the previous generation still covers the last INDEX_CAPACITY sends
+                Files.move(log.toPath(), previous(log).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                sentLogLines = 0;
+            }
+            Files.write(log.toPath(), (String.format("%016x", messageId) + ' ' + runId + '\n').getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            sentLogLines++;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + log, e);
+        }
+        if (sentBuilds != null) {
+            sentBuilds.put(messageId, runId);
+        }
+    }
+
+    private static File previous(File log) {
+        return new File(log.getPath() + ".1");
+    }
+
+    private static int countLines(File log) {
+        if (!log.exists()) {
+            return 0;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(log.toPath(), StandardCharsets.UTF_8)) {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read " + log, e);
+            return 0;
+        }
+    }
+
+    /** Looks up the record of a message the index does not know, e.g. one sent before a restart. */
+    private static Location locate(long messageId) {
+        if (sentBuilds == null) {
+            sentBuilds = new LongIndex<>(2 * INDEX_CAPACITY);
+            File log = new File(Jenkins.get().getRootDir(), SENT_LOG_NAME);
+            for (File file : new File[] {previous(log), log}) {
+                if (!file.exists()) {
+                    continue;
+                }
+                try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        int space = line.indexOf(' ');
+                        Long id = space > 0 ? parseMessageId(line.substring(0, space)) : null;
+                        if (id != null) {
+                            sentBuilds.put(id, line.substring(space + 1));
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not read " + file, e);
+                }
+            }
+        }
+        String runId = sentBuilds.get(messageId);
+        Run<?, ?> run = runId == null ? null : Run.fromExternalizableId(runId);
+        if (run == null) {
+            return null;
+        }
+        // index every message of the build, its other recipients' receipts usually follow
+        File file = new File(run.getRootDir(), FILE_NAME);
+        Location found = null;
+        long offset = 0;
+        for (Entry entry : read(run)) {
+            Location location = new Location(file, offset);
+            INDEX.put(entry.messageId, location);
+            if (entry.messageId == messageId) {
+                found = location;
+            }
+            offset += RECORD_BYTES;
+        }
+        return found;
+    }
+
+    /** Applies a delivery receipt. Returns {@code false} if the message is not among the recently sent ones. */
+    static synchronized boolean update(long messageId, int status) {
+        if (status <= 0 || status >= Status.values().length) {
+            return false;
+        }
+        Location location = INDEX.get(messageId);
+        if (location == null) {
+            location = locate(messageId);
+        }
+        if (location == null) {
+            return false;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(location.file, "rw")) {
+            out.seek(location.offset + ID_BYTES);
+            int current = out.read();
+            // receipts may arrive out of order, a read receipt must not fall back to delivered
+            if (status > current) {
+                out.seek(location.offset + ID_BYTES);
+                out.write(status);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not update " + location.file, e);
+            return false;
+        }
+    }
+
+    /** All messages sent for the build, oldest first. */
+    public static List<Entry> read(Run<?, ?> run) {
+        File file = new File(run.getRootDir(), FILE_NAME);
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size() - channel.size() % RECORD_BYTES;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            List<Entry> entries = new ArrayList<>((int) (size / RECORD_BYTES));
+            byte[] to = new byte[ID_BYTES];
+            while (buffer.remaining() >= RECORD_BYTES) {
+                long messageId = buffer.getLong();
+                int status = buffer.get();
+                int length = Math.min(Math.max(buffer.get(), 0), ID_BYTES);
+                buffer.get(to);
+                entries.add(new Entry(messageId, new String(to, 0, length, StandardCharsets.US_ASCII),
+                        Status.values()[Math.min(Math.max(status, 0), Status.values().length - 1)]));
+            }
+            return entries;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read " + file, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /** Status of each message sent for the build, by message ID, from one read of its receipts file. */
+    public static Map<Long, Status> getStatuses(Run<?, ?> run) {
+        Map<Long, Status> statuses = new HashMap<>();
+        for (Entry entry : read(run)) {
+            statuses.put(entry.messageId, entry.status);
+        }
+        return statuses;
+    }
+
+    public static final class Entry {
+        private final long messageId;
+        private final String recipient;
+        private final Status status;
+
+        Entry(long messageId, String recipient, Status status) {
+            this.messageId = messageId;
+            this.recipient = recipient;
+            this.status = status;
+        }
+
+        public long getMessageId() {
+            return messageId;
+        }
+
+        public String getMessageIdHex() {
+            return String.format("%016x", messageId);
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+    }
+
+    private static final class Location {
+        final File file;
+        final long offset;
+
+        Location(File file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+
+    /** Shows the delivery status of the messages sent for a build on its page. */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static class ActionFactory extends TransientActionFactory<Run> {
+
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Run target) {
+            if (!new File(target.getRootDir(), FILE_NAME).exists()) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new DeliveryStatusAction(target));
+        }
+    }
+
+    public static class DeliveryStatusAction implements Action {
+
+        private final Run<?, ?> run;
+
+        DeliveryStatusAction(Run<?, ?> run) {
+            this.run = run;
+        }
+
+        public List<Entry> getEntries() {
+            return read(run);
+        }
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Threema delivery status";
+        }
+
+        @Override
+        public String getUrlName() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps {@link DurationStats} per job, fed from completed builds and persisted to
+ * {@code threema-durations.xml}. Once a minute it checks the builds that opted in with
+ * {@link ThreemaNotifier#getNotifySlowBuild()} and are still running, and sends a single "still
+ * running" message for each build that exceeds its job's usual 95th percentile.
+ */
+@Extension
+public class DurationAnomalyDetector extends PeriodicWork {
+
+    private static final Logger logger = Logger.getLogger(DurationAnomalyDetector.class.getName());
+
+    /** Builds needed before the percentile is trusted. */
+    static final int MIN_SAMPLES = 10;
+
+    private Map<String, DurationStats> stats;
+    private volatile boolean dirty;
+    private final Map<String, Boolean> running = new ConcurrentHashMap<>();
+
+    public static DurationAnomalyDetector get() {
+        return ExtensionList.lookupSingleton(DurationAnomalyDetector.class);
+    }
+
+    void started(AbstractBuild<?, ?> build, ThreemaNotifier notifier) {
+        if (notifier.getNotifySlowBuild()) {
+            running.put(build.getExternalizableId(), Boolean.FALSE);
+        }
+    }
+
+    void completed(AbstractBuild<?, ?> build) {
+        running.remove(build.getExternalizableId());
+        getStats().computeIfAbsent(build.getParent().getFullName(), k -> new DurationStats()).add(build.getDuration());
+        dirty = true;
+    }
+
+    /** The job's usual 95th percentile in milliseconds, if enough builds have been seen. */
+    double getUsualP95(Run<?, ?> run) {
+        DurationStats s = getStats().get(run.getParent().getFullName());
+        return s == null || s.getCount() < MIN_SAMPLES ? Double.NaN : s.getP95();
+    }
+
+    double getUsualMean(Run<?, ?> run) {
+        DurationStats s = getStats().get(run.getParent().getFullName());
+        return s == null ? Double.NaN : s.getMean();
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        if (dirty) {
+            dirty = false;
+            save();
+        }
+        for (Map.Entry<String, Boolean> e : running.entrySet()) {
+            if (e.getValue()) {
+                continue;
+            }
+            Run<?, ?> run = Run.fromExternalizableId(e.getKey());
+            if (!(run instanceof AbstractBuild) || !run.isBuilding()) {
+                running.remove(e.getKey());
+                continue;
+            }
+            double p95 = getUsualP95(run);
+            long elapsed = System.currentTimeMillis() - run.getStartTimeInMillis();
+            if (Double.isNaN(p95) || elapsed <= p95) {
+                continue;
+            }
+            AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) run;
+            ThreemaNotifier notifier = build.getProject().getPublishersList().get(ThreemaNotifier.class);
+            if (notifier != null) {
+                e.setValue(Boolean.TRUE);
+                // the build is still running, which alone would make this a droppable start notification
+                notifier.newThreemaService(build, null).publishAsync(build,
+                        "\u23f1 still running after " + Util.getTimeSpanString(elapsed)
+                                + " (usual p95 " + Util.getTimeSpanString((long) p95) + ")",
+                        ThreemaDispatcher.Priority.NORMAL);
+            }
+        }
+    }
+
+    private synchronized Map<String, DurationStats> getStats() {
+        if (stats == null) {
+            stats = new ConcurrentHashMap<>();
+            XmlFile file = getFile();
+            if (file.exists()) {
+                try {
+                    @SuppressWarnings("unchecked")
+                    Map<String, DurationStats> loaded = (Map<String, DurationStats>) file.read();
+                    stats.putAll(loaded);
+                } catch (IOException | ClassCastException e) {
+                    logger.log(Level.WARNING, "Could not read " + file, e);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private void save() {
+        XmlFile file = getFile();
+        try {
+            file.write(getStats());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), "threema-durations.xml"));
+    }
+}
@@ -0,0 +1,84 @@
+package jenkins.plugins.threema;
+
+import java.util.Arrays;
+
+/**
+ * Constant-size running statistics of a job's build durations: an exponentially weighted mean and a
+ * P² estimate (Jain &amp; Chlamtac) of the 95th percentile. Five markers replace the sample history.
+ */
+final class DurationStats {
+
+    static final double P = 0.95;
+    private static final double ALPHA = 0.2;
+    private static final double[] INCREMENTS = {0, P / 2, P, (1 + P) / 2, 1};
+
+    private final double[] q = new double[5];
+    private final int[] n = new int[5];
+    private long count;
+    private double ewma;
+
+    synchronized void add(double x) {
+        ewma = count == 0 ? x : ewma + ALPHA * (x - ewma);
+        if (count < 5) {
+            q[(int) count++] = x;
+            if (count == 5) {
+                Arrays.sort(q);
+                for (int i = 0; i < 5; i++) {
+                    n[i] = i + 1;
+                }
+            }
+            return;
+        }
+        count++;
+
+        int k;
+        if (x < q[0]) {
+            q[0] = x;
+            k = 0;
+        } else if (x >= q[4]) {
+            q[4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= q[k + 1]) {
+                k++;
+            }
+        }
+        for (int i = k + 1; i < 5; i++) {
+            n[i]++;
+        }
+
+        for (int i = 1; i <= 3; i++) {
+            double d = 1 + (count - 1) * INCREMENTS[i] - n[i];
+            if ((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+                int s = d >= 0 ? 1 : -1;
+                double candidate = parabolic(i, s);
+                q[i] = q[i - 1] < candidate && candidate < q[i + 1] ? candidate : linear(i, s);
+                n[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        return q[i] + (double) s / (n[i + 1] - n[i - 1])
+                * ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+                + (n[i + 1] - n[i] - s) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+    }
+
+    private double linear(int i, int s) {
+        return q[i] + s * (q[i + s] - q[i]) / (n[i + s] - n[i]);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized double getMean() {
+        return ewma;
+    }
+
+    /** Estimated 95th percentile, or {@code NaN} before five samples have been seen. */
+    synchronized double getP95() {
+        return count < 5 ? Double.NaN : q[2];
+    }
+}
@@ -0,0 +1,179 @@
+package jenkins.plugins.threema;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tags a console log with a failure cause in a single pass, using an Aho-Corasick automaton built from
+ * all patterns at once. Patterns are plain, case insensitive (ASCII) strings, one per line in the form
+ * {@code label: text}; the label of the match closest to the end of the log wins.
+ * <p>
+ * The automaton is a complete transition table over the byte classes that occur in the patterns, so the
+ * scan is one array lookup per byte, and only the last {@code budget} bytes of the log are read.
+ */
+final class FailureClassifier {
+
+    static final String DEFAULT_PATTERNS = String.join("\n",
+            "OOM: java.lang.OutOfMemoryError",
+            "OOM: Cannot allocate memory",
+            "OOM: Killed process",
+            "agent disconnected: hudson.remoting.ChannelClosedException",
+            "agent disconnected: Agent went offline during the build",
+            "agent disconnected: Connection was broken",
+            "test failure: There are test failures",
+            "test failure: There were failing tests",
+            "dependency resolution: Could not resolve dependencies",
+            "dependency resolution: Failed to collect dependencies",
+            "dependency resolution: Could not resolve all dependencies",
+            "dependency resolution: npm ERR! 404",
+            "disk full: No space left on device",
+            "disk full: There is not enough space on the disk");
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final String[] labels;
+    private final int[] classOf = new int[256];
+    private final int classCount;
+    private final int[] delta;
+    // label index matched when entering the state, or -1
+    private final int[] output;
+
+    private FailureClassifier(Map<String, String> patterns) {
+        Map<String, Integer> labelIndex = new LinkedHashMap<>();
+        List<byte[]> texts = new ArrayList<>();
+        List<Integer> textLabels = new ArrayList<>();
+        int classes = 1;
+        for (Map.Entry<String, String> pattern : patterns.entrySet()) {
+            byte[] text = pattern.getKey().getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < text.length; i++) {
+                text[i] = lower(text[i]);
+                int b = text[i] & 0xff;
+                if (classOf[b] == 0) {
+                    classOf[b] = classes;
+                    classOf[upper(b)] = classes;
+                    classes++;
+                }
+            }
+            texts.add(text);
+            textLabels.add(labelIndex.computeIfAbsent(pattern.getValue(), k -> labelIndex.size()));
+        }
+        labels = labelIndex.keySet().toArray(new String[0]);
+        classCount = classes;
+
+        // trie
+        List<int[]> next = new ArrayList<>();
+        List<Integer> out = new ArrayList<>();
+        next.add(newRow());
+        out.add(-1);
+        for (int p = 0; p < texts.size(); p++) {
+            int state = 0;
+            for (byte b : texts.get(p)) {
+                int c = classOf[b & 0xff];
+                if (next.get(state)[c] < 0) {
+                    next.get(state)[c] = next.size();
+                    next.add(newRow());
+                    out.add(-1);
+                }
+                state = next.get(state)[c];
+            }
+            out.set(state, textLabels.get(p));
+        }
+
+        // failure links, folded into a complete transition table
+        int[] fail = new int[next.size()];
+        Deque<Integer> queue = new ArrayDeque<>();
+        int[] root = next.get(0);
+        for (int c = 0; c < classCount; c++) {
+            if (root[c] < 0) {
+                root[c] = 0;
+            } else {
+                queue.add(root[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            if (out.get(state) < 0) {
+                out.set(state, out.get(fail[state]));
+            }
+            int[] row = next.get(state);
+            int[] failRow = next.get(fail[state]);
+            for (int c = 0; c < classCount; c++) {
+                if (row[c] < 0) {
+                    row[c] = failRow[c];
+                } else {
+                    fail[row[c]] = failRow[c];
+                    queue.add(row[c]);
+                }
+            }
+        }
+
+        delta = new int[next.size() * classCount];
+        output = new int[next.size()];
+        for (int s = 0; s < next.size(); s++) {
+            System.arraycopy(next.get(s), 0, delta, s * classCount, classCount);
+            output[s] = out.get(s);
+        }
+    }
+
+    /** Compiles {@code label: text} lines; blank lines and lines starting with {@code #} are skipped. */
+    static FailureClassifier compile(String spec) {
+        Map<String, String> patterns = new LinkedHashMap<>();
+        for (String line : spec.split("\\r?\\n")) {
+            line = line.trim();
+            int colon = line.indexOf(':');
+            if (line.isEmpty() || line.startsWith("#") || colon <= 0 || colon == line.length() - 1) {
+                continue;
+            }
+            String text = line.substring(colon + 1).trim();
+            if (!text.isEmpty()) {
+                patterns.put(text, line.substring(0, colon).trim());
+            }
+        }
+        return new FailureClassifier(patterns);
+    }
+
+    /** The cause of the last match within the last {@code budget} bytes of the log, or {@code null}. */
+    String classify(File log, long budget) throws IOException {
+        if (labels.length == 0 || !log.isFile()) {
+            return null;
+        }
+        int state = 0;
+        int last = -1;
+        byte[] block = new byte[BLOCK_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+            raf.seek(Math.max(0, raf.length() - budget));
+            for (int n; (n = raf.read(block)) > 0; ) {
+                for (int i = 0; i < n; i++) {
+                    state = delta[state * classCount + classOf[block[i] & 0xff]];
+                    if (output[state] >= 0) {
+                        last = output[state];
+                    }
+                }
+            }
+        }
+        return last < 0 ? null : labels[last];
+    }
+
+    private int[] newRow() {
+        int[] row = new int[classCount];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static int upper(int b) {
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b;
+    }
+}
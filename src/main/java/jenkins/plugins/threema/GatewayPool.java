@@ -0,0 +1,125 @@
+package jenkins.plugins.threema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Spreads recipients over several gateway credentials and keeps track of which of them are currently
+ * usable. Recipients are assigned by rendezvous hashing, so a recipient keeps getting messages from the
+ * same gateway ID as long as that ID is healthy, and only the recipients of a failed ID move elsewhere.
+ */
+public final class GatewayPool {
+
+    private static final Logger logger = Logger.getLogger(GatewayPool.class.getName());
+
+    private static final long AUTH_BACKOFF = TimeUnit.HOURS.toMillis(1);
+    private static final long RATE_LIMIT_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Map<String, Health> HEALTH = new ConcurrentHashMap<>();
+
+    private GatewayPool() {
+    }
+
+    /**
+     * Returns the credentials to try for {@code recipient}, preferred first. Unhealthy credentials are
+     * kept at the end as a last resort.
+     */
+    static List<String> order(List<String> credentialsIds, String recipient) {
+        if (credentialsIds.size() <= 1) {
+            return credentialsIds;
+        }
+        long now = System.currentTimeMillis();
+        List<String> ordered = new ArrayList<>(credentialsIds);
+        ordered.sort(Comparator
+                .comparing((String id) -> !isHealthy(id, now))
+                .thenComparing(id -> weight(id, recipient), Comparator.reverseOrder()));
+        return ordered;
+    }
+
+    /** Whether a response with this status should be retried with another gateway ID. */
+    static boolean isFailover(int statusCode) {
+        return statusCode == 401 || statusCode == 402 || statusCode == 429;
+    }
+
+    static void markSuccess(String credentialsId) {
+        Health health = HEALTH.get(credentialsId);
+        if (health != null) {
+            health.consecutiveFailures = 0;
+            health.unhealthyUntil = 0;
+        }
+    }
+
+    static void markFailure(String credentialsId, int statusCode) {
+        long backoff = statusCode == 429 ? RATE_LIMIT_BACKOFF : AUTH_BACKOFF;
+        Health health = HEALTH.computeIfAbsent(credentialsId, k -> new Health());
+        synchronized (health) {
+            health.consecutiveFailures++;
+            health.lastStatus = statusCode;
+            health.unhealthyUntil = System.currentTimeMillis() + backoff;
+        }
+        logger.warning("Gateway credentials " + credentialsId + " unhealthy for " + backoff / 1000 + "s (status " + statusCode + ")");
+    }
+
+    static boolean isHealthy(String credentialsId, long now) {
+        Health health = HEALTH.get(credentialsId);
+        return health == null || health.unhealthyUntil <= now;
+    }
+
+    public static Map<String, Health> getHealth() {
+        return Collections.unmodifiableMap(HEALTH);
+    }
+
+    static List<String> parse(String credentialsId, String additionalCredentialsIds) {
+        List<String> ids = new ArrayList<>();
+        if (credentialsId != null && !credentialsId.trim().isEmpty()) {
+            ids.add(credentialsId.trim());
+        }
+        if (additionalCredentialsIds != null) {
+            for (String id : additionalCredentialsIds.split("[,;\\s]+")) {
+                if (!id.isEmpty() && !ids.contains(id)) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static long weight(String credentialsId, String recipient) {
+        // FNV-1a over "id:recipient", enough to spread recipients evenly
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (credentialsId + ':' + recipient).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static final class Health {
+        volatile long unhealthyUntil;
+        volatile int consecutiveFailures;
+        volatile int lastStatus;
+
+        public long getUnhealthyUntil() {
+            return unhealthyUntil;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public int getLastStatus() {
+            return lastStatus;
+        }
+
+        public boolean isHealthy() {
+            return unhealthyUntil <= System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package jenkins.plugins.threema;
+
+/**
+ * Bounded {@code long} keyed hash map with open addressing, so keys are never boxed. When full, the
+ * oldest inserted key is evicted. Not thread safe.
+ */
+final class LongIndex<V> {
+
+    private final long[] keys;
+    private final Object[] values;
+    private final int mask;
+    // insertion order, for eviction
+    private final long[] order;
+    private int head;
+    private int size;
+
+    LongIndex(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        keys = new long[tableSize];
+        values = new Object[tableSize];
+        mask = tableSize - 1;
+        order = new long[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    void put(long key, V value) {
+        if (get(key) == null && size == order.length) {
+            remove(order[head]);
+            head = (head + 1) % order.length;
+            size--;
+        }
+        int i = slot(key);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        order[(head + size) % order.length] = key;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void remove(long key) {
+        int i = slot(key);
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null) {
+            return;
+        }
+        values[i] = null;
+        // shift following entries back so that lookups do not stop at the hole
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
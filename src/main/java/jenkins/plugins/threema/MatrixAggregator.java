@@ -0,0 +1,87 @@
+package jenkins.plugins.threema;
+
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the results of the configurations of a matrix build while they complete, so that a single
+ * message with a per-axis summary can be sent when the parent build completes instead of one message
+ * per configuration.
+ */
+final class MatrixAggregator {
+
+    /** Failing combinations listed in a summary, the rest are only counted. */
+    static final int MAX_LISTED_COMBINATIONS = 10;
+
+    private static final Map<String, Tally> TALLIES = new ConcurrentHashMap<>();
+
+    private MatrixAggregator() {
+    }
+
+    static void record(MatrixRun run) {
+        MatrixBuild parent = run.getParentBuild();
+        if (parent != null) {
+            TALLIES.computeIfAbsent(parent.getExternalizableId(), k -> new Tally()).add(run);
+        }
+    }
+
+    /**
+     * Summary of the configurations of a completed matrix build, e.g. {@code 38 \u2714 2 \u2716: jdk=8,os=win; ...}.
+     * Falls back to the recorded runs if configurations completed before a restart.
+     */
+    static String complete(MatrixBuild build) {
+        Tally tally = TALLIES.remove(build.getExternalizableId());
+        if (tally == null) {
+            tally = new Tally();
+            for (MatrixRun run : build.getExactRuns()) {
+                tally.add(run);
+            }
+        }
+        return tally.toString();
+    }
+
+    private static final class Tally {
+        private int success;
+        private int unstable;
+        private int failed;
+        private final List<String> failing = new ArrayList<>();
+
+        synchronized void add(MatrixRun run) {
+            Result result = run.getResult();
+            if (result == Result.SUCCESS) {
+                success++;
+                return;
+            }
+            if (result == Result.UNSTABLE) {
+                unstable++;
+            } else {
+                failed++;
+            }
+            failing.add(run.getParent().getCombination().toString());
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder summary = new StringBuilder().append(success).append(" \u2714");
+            if (unstable > 0) {
+                summary.append(' ').append(unstable).append(" \u26a0");
+            }
+            if (failed > 0) {
+                summary.append(' ').append(failed).append(" \u2716");
+            }
+            if (!failing.isEmpty()) {
+                summary.append(": ").append(String.join("; ", failing.subList(0, Math.min(failing.size(), MAX_LISTED_COMBINATIONS))));
+                if (failing.size() > MAX_LISTED_COMBINATIONS) {
+                    summary.append(" \u2026 +").append(failing.size() - MAX_LISTED_COMBINATIONS);
+                }
+            }
+            return summary.toString();
+        }
+    }
+}
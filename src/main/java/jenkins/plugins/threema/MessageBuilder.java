@@ -3,10 +3,18 @@ package jenkins.plugins.threema;
 import hudson.Util;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.scm.ChangeLogSet;
+import hudson.tasks.test.AbstractTestResultAction;
+import hudson.tasks.test.TestResult;
 import jenkins.model.Jenkins;
+import jenkins.scm.RunWithSCM;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,7 +22,7 @@ public class MessageBuilder {
 
     private static final Logger logger = Logger.getLogger(MessageBuilder.class.getName());
 
-    private static final String STARTING_STATUS_MESSAGE = "\uD83D\uDE4F Running",
+    static final String STARTING_STATUS_MESSAGE = "\uD83D\uDE4F Running",
             BACK_TO_NORMAL_STATUS_MESSAGE = "\uD83D\uDC4D Back to normal",
             STILL_FAILING_STATUS_MESSAGE = "\uD83D\uDED1 Still Failing",
             SUCCESS_STATUS_MESSAGE = "\uD83D\uDC4D Success",
@@ -24,6 +32,8 @@ public class MessageBuilder {
             UNSTABLE_STATUS_MESSAGE = "\u26a0 Unstable",
             UNKNOWN_STATUS_MESSAGE = "\u2753 Unknown";
 
+    private static final int MAX_CULPRIT_BUILDS = 20;
+
     private final StringBuffer message;
     private final Run<?, ?> build;
 
@@ -142,6 +152,85 @@ public class MessageBuilder {
         return this;
     }
 
+    /**
+     * Appends the counts already summarized on the test result action, which does not load the test
+     * results. Listing the names of up to {@code maxFailedTests} failing tests does: the whole result tree
+     * of the build is read from disk, so it is only done when {@code maxFailedTests} is positive and there
+     * are failures.
+     */
+    public MessageBuilder appendTestSummary(int maxFailedTests) {
+        AbstractTestResultAction<?> action = build.getAction(AbstractTestResultAction.class);
+        if (action == null) {
+            return this;
+        }
+        int failed = action.getFailCount();
+        message.append(", ").append(failed).append(" failed / ").append(action.getTotalCount()).append(" tests");
+        if (failed > 0 && maxFailedTests > 0) {
+            List<? extends TestResult> failedTests = action.getFailedTests();
+            List<String> names = new ArrayList<>();
+            for (TestResult test : failedTests.subList(0, Math.min(maxFailedTests, failedTests.size()))) {
+                names.add(this.escape(test.getFullName()));
+            }
+            message.append(": ").append(String.join(", ", names));
+            if (failed > names.size()) {
+                message.append(", …");
+            }
+        }
+        return this;
+    }
+
+    /** Appends the cause a {@link FailureClassifier} found in the console log, if any. */
+    public MessageBuilder appendFailureCause(String cause) {
+        if (cause != null) {
+            message.append(" \uD83D\uDD0E ").append(this.escape(cause));
+        }
+        return this;
+    }
+
+    /**
+     * Appends the authors of the changes since the last successful build. Gives up after
+     * {@code maxChangeSets} change log entries or {@link #MAX_CULPRIT_BUILDS} builds.
+     */
+    public MessageBuilder appendCulprits(int maxChangeSets) {
+        Set<String> authors = new LinkedHashSet<>();
+        Run<?, ?> lastSuccess = build.getPreviousSuccessfulBuild();
+        Run<?, ?> r = build;
+        int entries = 0;
+        int builds = 0;
+        outer:
+        while (r != null && r != lastSuccess && builds++ < MAX_CULPRIT_BUILDS) {
+            if (r instanceof RunWithSCM) {
+                for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : ((RunWithSCM<?, ?>) r).getChangeSets()) {
+                    for (ChangeLogSet.Entry entry : changeSet) {
+                        if (entries++ >= maxChangeSets) {
+                            break outer;
+                        }
+                        authors.add(entry.getAuthor().getFullName());
+                    }
+                }
+            }
+            r = r.getPreviousBuild();
+        }
+        if (!authors.isEmpty()) {
+            message.append(", changes by ").append(this.escape(String.join(", ", authors)));
+        }
+        return this;
+    }
+
+    /**
+     * Flags a build that took longer than its job's usual 95th percentile.
+     */
+    public MessageBuilder appendDurationAnomaly(double usualP95, double usualMean) {
+        if (!Double.isNaN(usualP95) && build.getDuration() > usualP95) {
+            message.append(" \u23F1 slower than usual (p95 ").append(Util.getTimeSpanString((long) usualP95));
+            if (!Double.isNaN(usualMean)) {
+                message.append(", typically ").append(Util.getTimeSpanString((long) usualMean));
+            }
+            message.append(")");
+        }
+        return this;
+    }
+
     private String createBackToNormalDurationString() {
         Run previousSuccessfulBuild = build.getPreviousSuccessfulBuild();
         if (previousSuccessfulBuild == null) {
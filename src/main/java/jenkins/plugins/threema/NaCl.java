@@ -0,0 +1,127 @@
+package jenkins.plugins.threema;
+
+import org.bouncycastle.crypto.engines.Salsa20Engine;
+import org.bouncycastle.crypto.engines.XSalsa20Engine;
+import org.bouncycastle.crypto.macs.Poly1305;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.crypto.params.X25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.X25519PublicKeyParameters;
+import org.bouncycastle.util.Pack;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The NaCl {@code crypto_box} / {@code crypto_secretbox} constructions used by the Threema end-to-end
+ * API, on top of the Bouncy Castle primitives. Output is in the "easy" layout: MAC followed by ciphertext.
+ */
+final class NaCl {
+
+    static final int KEY_BYTES = 32;
+    static final int NONCE_BYTES = 24;
+    static final int MAC_BYTES = 16;
+
+    private static final int[] SIGMA = {0x61707865, 0x3320646e, 0x79622d32, 0x6b206574};
+
+    private NaCl() {
+    }
+
+    /** {@code crypto_box_beforenm}: X25519 followed by HSalsa20 with an all-zero input. */
+    static byte[] sharedKey(byte[] publicKey, byte[] privateKey) {
+        byte[] shared = new byte[KEY_BYTES];
+        new X25519PrivateKeyParameters(privateKey, 0)
+                .generateSecret(new X25519PublicKeyParameters(publicKey, 0), shared, 0);
+        return hsalsa20(shared, new byte[16]);
+    }
+
+    static byte[] box(byte[] message, byte[] nonce, byte[] publicKey, byte[] privateKey) {
+        return secretBox(message, nonce, sharedKey(publicKey, privateKey));
+    }
+
+    static byte[] secretBox(byte[] message, byte[] nonce, byte[] key) {
+        SecretBoxCipher cipher = new SecretBoxCipher(key, nonce);
+        byte[] out = new byte[MAC_BYTES + message.length];
+        cipher.process(message, 0, message.length, out, MAC_BYTES);
+        cipher.doFinal(out, 0);
+        return out;
+    }
+
+    static byte[] open(byte[] box, byte[] nonce, byte[] publicKey, byte[] privateKey) {
+        return secretOpen(box, nonce, sharedKey(publicKey, privateKey));
+    }
+
+    /** Verifies and decrypts a {@link #secretBox} output, returns {@code null} if it does not authenticate. */
+    static byte[] secretOpen(byte[] box, byte[] nonce, byte[] key) {
+        if (box.length < MAC_BYTES) {
+            return null;
+        }
+        XSalsa20Engine engine = new XSalsa20Engine();
+        engine.init(false, new ParametersWithIV(new KeyParameter(key), nonce));
+        byte[] macKey = new byte[KEY_BYTES];
+        engine.processBytes(new byte[KEY_BYTES], 0, KEY_BYTES, macKey, 0);
+        Poly1305 mac = new Poly1305();
+        mac.init(new KeyParameter(macKey));
+        mac.update(box, MAC_BYTES, box.length - MAC_BYTES);
+        byte[] tag = new byte[MAC_BYTES];
+        mac.doFinal(tag, 0);
+        if (!MessageDigest.isEqual(tag, Arrays.copyOf(box, MAC_BYTES))) {
+            return null;
+        }
+        byte[] out = new byte[box.length - MAC_BYTES];
+        engine.processBytes(box, MAC_BYTES, out.length, out, 0);
+        return out;
+    }
+
+    static byte[] hsalsa20(byte[] key, byte[] input) {
+        int[] state = new int[16];
+        state[0] = SIGMA[0];
+        state[5] = SIGMA[1];
+        state[10] = SIGMA[2];
+        state[15] = SIGMA[3];
+        for (int i = 0; i < 4; i++) {
+            state[1 + i] = Pack.littleEndianToInt(key, i * 4);
+            state[11 + i] = Pack.littleEndianToInt(key, 16 + i * 4);
+            state[6 + i] = Pack.littleEndianToInt(input, i * 4);
+        }
+
+        int[] x = new int[16];
+        Salsa20Engine.salsaCore(20, state, x);
+        // salsaCore adds the input words back in, HSalsa20 does not
+        int[] words = {
+                x[0] - state[0], x[5] - state[5], x[10] - state[10], x[15] - state[15],
+                x[6] - state[6], x[7] - state[7], x[8] - state[8], x[9] - state[9]
+        };
+        byte[] out = new byte[KEY_BYTES];
+        for (int i = 0; i < words.length; i++) {
+            Pack.intToLittleEndian(words[i], out, i * 4);
+        }
+        return out;
+    }
+
+    /**
+     * Incremental {@code crypto_secretbox}: XSalsa20 encryption with a Poly1305 tag over the ciphertext,
+     * so arbitrarily large inputs can be encrypted chunk by chunk.
+     */
+    static final class SecretBoxCipher {
+        private final XSalsa20Engine engine = new XSalsa20Engine();
+        private final Poly1305 mac = new Poly1305();
+
+        SecretBoxCipher(byte[] key, byte[] nonce) {
+            engine.init(true, new ParametersWithIV(new KeyParameter(key), nonce));
+            // the first 32 bytes of the key stream are the one-time Poly1305 key
+            byte[] macKey = new byte[KEY_BYTES];
+            engine.processBytes(new byte[KEY_BYTES], 0, KEY_BYTES, macKey, 0);
+            mac.init(new KeyParameter(macKey));
+        }
+
+        void process(byte[] in, int inOff, int len, byte[] out, int outOff) {
+            engine.processBytes(in, inOff, len, out, outOff);
+            mac.update(out, outOff, len);
+        }
+
+        void doFinal(byte[] out, int outOff) {
+            mac.doFinal(out, outOff);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package jenkins.plugins.threema;
+
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact binary trace of the notifications queued on a controller, for the {@code NotificationReplay}
+ * tool in the test sources. Recording is off unless the system property
+ * {@code jenkins.plugins.threema.NotificationTrace.file} names the trace file.
+ * <p>
+ * Events are recorded when a notification is handed to {@link ThreemaDispatcher}, so the gaps between
+ * them do not include time spent in its queue. The size of the message text, rendered right after, follows
+ * as a separate record that refers back to the event.
+ * <p>
+ * The trace is anonymized: jobs and recipients are replaced by numbers in order of first appearance and
+ * only the size of the message text is kept. Every record starts with the milliseconds since the
+ * previous record and its kind. An event then holds the job, build number, build result, priority and
+ * recipients, a size record the event number and the text size, all as variable length integers, so an
+ * event typically takes under ten bytes.
+ */
+final class NotificationTrace {
+
+    private static final Logger logger = Logger.getLogger(NotificationTrace.class.getName());
+
+    static final int MAGIC = 0x54485452; // "THTR"
+    static final int VERSION = 2;
+
+    /** Notification about a completed build. */
+    static final int BUILD_COMPLETED = 0;
+    /** Notification while the build runs: {@code threemaSend} or a start notification. */
+    static final int IN_BUILD = 1;
+    /** Size of the text of an earlier event. */
+    static final int TEXT_SIZE = 2;
+
+    static final int NO_RESULT = 0x7f;
+
+    private static final String FILE = System.getProperty(NotificationTrace.class.getName() + ".file");
+    private static NotificationTrace recorder;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> jobs = new HashMap<>();
+    private final Map<String, Integer> recipients = new HashMap<>();
+    private long last;
+    private long events;
+
+    private NotificationTrace(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeLong(System.currentTimeMillis());
+        this.last = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a notification being queued if tracing is enabled; never fails the send.
+     *
+     * @return the event number to pass to {@link #recordTextSize(long, int)}, or -1 if nothing was recorded
+     */
+    static long record(Run<?, ?> run, String[] to, ThreemaDispatcher.Priority priority) {
+        if (FILE == null) {
+            return -1;
+        }
+        synchronized (NotificationTrace.class) {
+            try {
+                if (recorder == null) {
+                    recorder = new NotificationTrace(new FileOutputStream(new File(FILE), false));
+                    logger.info("Recording Threema notification trace to " + FILE);
+                }
+                return recorder.write(run, to, priority);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write Threema notification trace " + FILE, e);
+                return -1;
+            }
+        }
+    }
+
+    /** Records the size of the text rendered for a recorded event. */
+    static void recordTextSize(long event, int textBytes) {
+        if (event < 0) {
+            return;
+        }
+        synchronized (NotificationTrace.class) {
+            try {
+                recorder.start(TEXT_SIZE);
+                writeVar(recorder.out, event);
+                writeVar(recorder.out, textBytes);
+                recorder.out.flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write Threema notification trace " + FILE, e);
+            }
+        }
+    }
+
+    private long write(Run<?, ?> run, String[] to, ThreemaDispatcher.Priority priority) throws IOException {
+        Result result = run.getResult();
+        boolean completed = result != null && !run.isBuilding();
+        start(completed ? BUILD_COMPLETED : IN_BUILD);
+        writeVar(out, jobs.computeIfAbsent(run.getParent().getFullName(), k -> jobs.size()));
+        writeVar(out, run.getNumber());
+        out.writeByte(completed ? result.ordinal : NO_RESULT);
+        out.writeByte(priority.ordinal());
+        writeVar(out, to.length);
+        for (String recipient : to) {
+            writeVar(out, recipients.computeIfAbsent(recipient.trim(), k -> recipients.size()));
+        }
+        // the trace is read after the fact, flushing keeps it usable if Jenkins is killed
+        out.flush();
+        return events++;
+    }
+
+    private void start(int kind) throws IOException {
+        long now = System.currentTimeMillis();
+        writeVar(out, Math.max(0, now - last));
+        out.writeByte(kind);
+        last = now;
+    }
+
+    static final class Event {
+        /** Milliseconds since the previous event. */
+        final long delay;
+        final int kind;
+        final int job;
+        final int build;
+        final int result;
+        final ThreemaDispatcher.Priority priority;
+        final int[] recipients;
+        /** -1 if no text size was recorded, e.g. because Jenkins went down right after the event. */
+        int textBytes = -1;
+
+        Event(long delay, int kind, int job, int build, int result, ThreemaDispatcher.Priority priority, int[] recipients) {
+            this.delay = delay;
+            this.kind = kind;
+            this.job = job;
+            this.build = build;
+            this.result = result;
+            this.priority = priority;
+            this.recipients = recipients;
+        }
+    }
+
+    static final class Reader implements AutoCloseable {
+        private final DataInputStream in;
+
+        Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (this.in.readInt() != MAGIC || this.in.readByte() != VERSION) {
+                throw new IOException("Not a Threema notification trace");
+            }
+            this.in.readLong();
+        }
+
+        /**
+         * All events of the trace with their text sizes filled in. Size records only move the clock, the
+         * delay of an event is relative to the event before it.
+         */
+        List<Event> readAll() throws IOException {
+            List<Event> events = new ArrayList<>();
+            long delay = 0;
+            while (true) {
+                try {
+                    delay += readVar(in);
+                } catch (EOFException e) {
+                    return events;
+                }
+                int kind = in.readByte();
+                if (kind == TEXT_SIZE) {
+                    long event = readVar(in);
+                    int textBytes = (int) readVar(in);
+                    if (event < events.size()) {
+                        events.get((int) event).textBytes = textBytes;
+                    }
+                    continue;
+                }
+                int job = (int) readVar(in);
+                int build = (int) readVar(in);
+                int result = in.readByte();
+                ThreemaDispatcher.Priority priority = ThreemaDispatcher.Priority.values()[in.readByte()];
+                int[] recipients = new int[(int) readVar(in)];
+                for (int i = 0; i < recipients.length; i++) {
+                    recipients[i] = (int) readVar(in);
+                }
+                events.add(new Event(delay, kind, job, build, result, priority, recipients));
+                delay = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static void writeVar(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVar(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+}
@@ -0,0 +1,63 @@
+package jenkins.plugins.threema;
+
+import hudson.model.Run;
+
+import java.util.logging.Logger;
+
+/**
+ * Everything needed to repeat a queued build notification after a restart: the build it is about, its
+ * text as rendered when it was queued and the credentials and recipients it was going to be sent with.
+ */
+public class PendingNotification {
+
+    private static final Logger logger = Logger.getLogger(PendingNotification.class.getName());
+
+    private final String runId;
+    private final String text;
+    private final ThreemaDispatcher.Priority priority;
+    private final String credentialsId;
+    private final String additionalCredentialsIds;
+    private final String recipient;
+
+    PendingNotification(String runId, String text, ThreemaDispatcher.Priority priority, String credentialsId,
+                        String additionalCredentialsIds, String recipient) {
+        this.runId = runId;
+        this.text = text;
+        this.priority = priority;
+        this.credentialsId = credentialsId;
+        this.additionalCredentialsIds = additionalCredentialsIds;
+        this.recipient = recipient;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public ThreemaDispatcher.Priority getPriority() {
+        return priority;
+    }
+
+    StandardThreemaService newService() {
+        StandardThreemaService service = new StandardThreemaService(credentialsId, recipient);
+        service.setAdditionalCredentialsIds(additionalCredentialsIds);
+        return service;
+    }
+
+    boolean send() {
+        Run<?, ?> run = Run.fromExternalizableId(runId);
+        if (run == null) {
+            logger.warning("Dropping deferred Threema notification, build " + runId + " no longer exists");
+            return false;
+        }
+        return newService().deliver(run, text);
+    }
+
+    @Override
+    public String toString() {
+        return runId + " to " + recipient;
+    }
+}
@@ -0,0 +1,65 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import jenkins.model.TransientActionFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows quarantined recipients of a job's {@link ThreemaNotifier} on the job page.
+ */
+@Extension
+@SuppressWarnings("rawtypes")
+public class QuarantineActionFactory extends TransientActionFactory<AbstractProject> {
+
+    @Override
+    public Class<AbstractProject> type() {
+        return AbstractProject.class;
+    }
+
+    @Override
+    public Collection<? extends Action> createFor(AbstractProject target) {
+        ThreemaNotifier notifier = (ThreemaNotifier) target.getPublishersList().get(ThreemaNotifier.class);
+        if (notifier == null) {
+            return Collections.emptyList();
+        }
+        List<RecipientQuarantine.Entry> entries = RecipientQuarantine.getEntries(
+                ThreemaSettings.resolve(target, notifier).getRecipient());
+        if (entries.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new QuarantineAction(entries));
+    }
+
+    public static class QuarantineAction implements Action {
+
+        private final List<RecipientQuarantine.Entry> entries;
+
+        QuarantineAction(List<RecipientQuarantine.Entry> entries) {
+            this.entries = entries;
+        }
+
+        public List<RecipientQuarantine.Entry> getEntries() {
+            return entries;
+        }
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Quarantined Threema recipients";
+        }
+
+        @Override
+        public String getUrlName() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.util.Timer;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Alerts when an item of a job with {@link ThreemaNotifier#getQueueAlertMinutes()} set stays in the
+ * build queue longer than that. Items are tracked from the queue events alone: their deadlines are
+ * kept in order and a single timer task is scheduled for the earliest one, so the queue itself is
+ * never scanned.
+ */
+@Extension
+public class QueueStarvationMonitor extends QueueListener {
+
+    private static final Logger logger = Logger.getLogger(QueueStarvationMonitor.class.getName());
+
+    private final TreeSet<Deadline> deadlines = new TreeSet<>(
+            Comparator.comparingLong((Deadline d) -> d.at).thenComparingLong(d -> d.itemId));
+    private final Map<Long, Deadline> byItem = new HashMap<>();
+    private ScheduledFuture<?> timer;
+    private long timerAt;
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        track(wi);
+    }
+
+    @Override
+    public void onEnterBlocked(Queue.BlockedItem bi) {
+        track(bi);
+    }
+
+    @Override
+    public void onEnterBuildable(Queue.BuildableItem bi) {
+        track(bi);
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        synchronized (this) {
+            Deadline deadline = byItem.remove(li.getId());
+            if (deadline != null) {
+                deadlines.remove(deadline);
+            }
+        }
+    }
+
+    private void track(Queue.Item item) {
+        ThreemaNotifier notifier = getNotifier(item);
+        if (notifier == null || notifier.getQueueAlertMinutes() <= 0) {
+            return;
+        }
+        synchronized (this) {
+            // items move between states, the deadline is set when they are first seen
+            if (byItem.containsKey(item.getId())) {
+                return;
+            }
+            Deadline deadline = new Deadline(item.getId(),
+                    item.getInQueueSince() + TimeUnit.MINUTES.toMillis(notifier.getQueueAlertMinutes()));
+            byItem.put(deadline.itemId, deadline);
+            deadlines.add(deadline);
+            schedule();
+        }
+    }
+
+    /** Makes sure the timer fires at the earliest deadline, called with the lock held. */
+    private void schedule() {
+        if (deadlines.isEmpty()) {
+            return;
+        }
+        long at = deadlines.first().at;
+        if (timer != null && !timer.isDone() && timerAt <= at) {
+            return;
+        }
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        timerAt = at;
+        timer = Timer.get().schedule(this::fire, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void fire() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            timer = null;
+            while (!deadlines.isEmpty() && deadlines.first().at <= now) {
+                Deadline deadline = deadlines.pollFirst();
+                // kept in byItem so that the item is not tracked again, onLeft removes it
+                Queue.Item item = Queue.getInstance().getItem(deadline.itemId);
+                if (item != null) {
+                    ThreemaDispatcher.get().submit(() -> alert(item, now));
+                }
+            }
+            schedule();
+        }
+    }
+
+    private static boolean alert(Queue.Item item, long now) {
+        ThreemaNotifier notifier = getNotifier(item);
+        if (notifier == null) {
+            return false;
+        }
+        String text = "\u23F3 " + item.task.getFullDisplayName() + " waiting in the queue for "
+                + Util.getTimeSpanString(now - item.getInQueueSince());
+        String why = item.getWhy();
+        if (why != null) {
+            text += ": " + why;
+        }
+        logger.fine(text);
+        AbstractProject<?, ?> project = (AbstractProject<?, ?>) item.task;
+        return ((StandardThreemaService) notifier.newThreemaService(project)).publishText(project, text);
+    }
+
+    private static ThreemaNotifier getNotifier(Queue.Item item) {
+        if (!(item.task instanceof AbstractProject)) {
+            return null;
+        }
+        return ((AbstractProject<?, ?>) item.task).getPublishersList().get(ThreemaNotifier.class);
+    }
+
+    private static final class Deadline {
+        final long itemId;
+        final long at;
+
+        Deadline(long itemId, long at) {
+            this.itemId = itemId;
+            this.at = at;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package jenkins.plugins.threema;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Negative cache of (gateway ID, recipient) pairs the gateway rejected permanently, e.g. a mistyped or
+ * revoked Threema ID. Quarantined pairs are skipped without a network call; once the quarantine runs
+ * out a single send is let through as a probe, and every further rejection doubles the interval.
+ */
+public final class RecipientQuarantine {
+
+    private static final Logger logger = Logger.getLogger(RecipientQuarantine.class.getName());
+
+    static final long INITIAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    static final long MAX_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final long PROBE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private RecipientQuarantine() {
+    }
+
+    /**
+     * Whether the gateway status means this recipient will not accept messages from this ID. A 400 is not
+     * one of them: it may as well mean that the sending ID is not set up for simple messages.
+     */
+    static boolean isPermanent(int statusCode) {
+        return statusCode == 404;
+    }
+
+    /**
+     * Whether a send may go out. When a quarantine has just run out, only the first caller is let
+     * through as the probe; concurrent sends keep being skipped until the probe has an answer.
+     */
+    static boolean allowSend(String from, String recipient) {
+        Entry entry = ENTRIES.get(key(from, recipient));
+        if (entry == null) {
+            return true;
+        }
+        synchronized (entry) {
+            long now = System.currentTimeMillis();
+            if (entry.until > now) {
+                return false;
+            }
+            entry.until = now + PROBE_MILLIS;
+            return true;
+        }
+    }
+
+    static void reject(String from, String recipient, int statusCode) {
+        Entry entry = ENTRIES.computeIfAbsent(key(from, recipient), k -> new Entry(from, recipient.trim()));
+        synchronized (entry) {
+            entry.rejections++;
+            entry.lastStatus = statusCode;
+            long interval = Math.min(MAX_MILLIS, INITIAL_MILLIS << Math.min(entry.rejections - 1, 16));
+            entry.until = System.currentTimeMillis() + interval;
+        }
+        logger.warning("Quarantined Threema recipient " + recipient + " for gateway ID " + from
+                + " after status " + statusCode + " (" + entry.rejections + " rejections)");
+    }
+
+    static void accept(String from, String recipient) {
+        if (!ENTRIES.isEmpty()) {
+            ENTRIES.remove(key(from, recipient));
+        }
+    }
+
+    public static void release(String from, String recipient) {
+        ENTRIES.remove(key(from, recipient));
+    }
+
+    public static Collection<Entry> getEntries() {
+        return new ArrayList<>(ENTRIES.values());
+    }
+
+    /** Quarantine entries for any of the given recipients, whatever the gateway ID. */
+    public static List<Entry> getEntries(String recipients) {
+        List<Entry> result = new ArrayList<>();
+        if (recipients == null || ENTRIES.isEmpty()) {
+            return result;
+        }
+        for (String recipient : recipients.split("[,;]+")) {
+            for (Entry entry : ENTRIES.values()) {
+                if (entry.recipient.equals(recipient.trim())) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String key(String from, String recipient) {
+        return from + '|' + recipient.trim();
+    }
+
+    public static final class Entry {
+        private final String from;
+        private final String recipient;
+        volatile int rejections;
+        volatile int lastStatus;
+        volatile long until;
+
+        Entry(String from, String recipient) {
+            this.from = from;
+            this.recipient = recipient;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public int getRejections() {
+            return rejections;
+        }
+
+        public int getLastStatus() {
+            return lastStatus;
+        }
+
+        public long getUntil() {
+            return until;
+        }
+
+        public Date getUntilDate() {
+            return new Date(until);
+        }
+
+        public boolean isActive() {
+            return until > System.currentTimeMillis();
+        }
+    }
+}
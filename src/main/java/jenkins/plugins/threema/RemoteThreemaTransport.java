@@ -0,0 +1,58 @@
+package jenkins.plugins.threema;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.IOException;
+
+/**
+ * Performs the gateway call on a build agent: only the request parameters travel over the remoting
+ * channel, the HTTP connection and TLS handshake happen in the agent JVM. The agent does not know the
+ * controller's proxy configuration and connects directly.
+ */
+public class RemoteThreemaTransport implements ThreemaTransport {
+
+    private final VirtualChannel channel;
+
+    public RemoteThreemaTransport(VirtualChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public ThreemaResponse send(String from, String to, String text, String secret) throws IOException {
+        try {
+            return channel.call(new SendCallable(from, to, text, secret));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending from agent", e);
+        }
+    }
+
+    private static final class SendCallable extends MasterToSlaveCallable<ThreemaResponse, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String from;
+        private final String to;
+        private final String text;
+        // only ever sent over the (encrypted) remoting channel, never logged
+        private final String secret;
+
+        SendCallable(String from, String to, String text, String secret) {
+            this.from = from;
+            this.to = to;
+            this.text = text;
+            this.secret = secret;
+        }
+
+        @Override
+        public ThreemaResponse call() throws IOException {
+            return ApacheThreemaTransport.direct().send(from, to, text, secret);
+        }
+
+        @Override
+        public String toString() {
+            return "Threema send from " + from + " to " + to;
+        }
+    }
+}
@@ -1,34 +1,28 @@
 package jenkins.plugins.threema;
 
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import edu.umd.cs.findbugs.annotations.NonNull;
-import hudson.ProxyConfiguration;
+import hudson.model.Item;
+import hudson.model.Result;
 import hudson.model.Run;
+import hudson.security.ACL;
 import jenkins.model.Jenkins;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
-import org.apache.http.ssl.SSLContexts;
-
-import java.io.BufferedReader;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Objects;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -38,14 +32,65 @@ public class StandardThreemaService implements ThreemaService {
 
     private static final Logger logger = Logger.getLogger(StandardThreemaService.class.getName());
     public static final String THREEMA_API_URL = "https://msgapi.threema.ch/send_simple";
+    /** Maximum text length in bytes accepted by the gateway for simple messages. */
+    public static final int MAX_TEXT_BYTES = 3500;
+    private static final int ELLIPSIS_BYTES = 3;
+
+    private static final int MAX_CULPRIT_CHANGESETS = 50;
+    /** How much of the end of the console log is scanned for a failure cause. */
+    static final long FAILURE_SCAN_BYTES = Long.getLong(StandardThreemaService.class.getName() + ".failureScanBytes", 4L * 1024 * 1024);
 
     private final String credentialsId;
+    private final String recipient;
     private final String[] recipients;
+    private final ThreemaTransport transport;
+    private String additionalCredentialsIds;
+    private int logTailLines;
+    private boolean includeTestSummary;
+    private int maxFailedTests;
+    private boolean includeCulprits;
+    private boolean notifySlowBuild;
+    private final Map<String, Long> sentMessageIds = new ConcurrentHashMap<>();
 
     public StandardThreemaService(String credentialsId, String recipient) {
+        this(credentialsId, recipient, ApacheThreemaTransport.get());
+    }
+
+    public StandardThreemaService(String credentialsId, String recipient, ThreemaTransport transport) {
         super();
         this.credentialsId = credentialsId;
+        this.recipient = recipient;
         this.recipients = recipient.split("[,;]+");
+        this.transport = transport;
+    }
+
+    public void setAdditionalCredentialsIds(String additionalCredentialsIds) {
+        this.additionalCredentialsIds = additionalCredentialsIds;
+    }
+
+    public void setLogTailLines(int logTailLines) {
+        this.logTailLines = logTailLines;
+    }
+
+    public void setIncludeTestSummary(boolean includeTestSummary) {
+        this.includeTestSummary = includeTestSummary;
+    }
+
+    public void setMaxFailedTests(int maxFailedTests) {
+        this.maxFailedTests = maxFailedTests;
+    }
+
+    public void setIncludeCulprits(boolean includeCulprits) {
+        this.includeCulprits = includeCulprits;
+    }
+
+    public void setNotifySlowBuild(boolean notifySlowBuild) {
+        this.notifySlowBuild = notifySlowBuild;
+    }
+
+    /** Gateway message IDs of the messages this service sent, by recipient. */
+    public Map<String, Long> getSentMessageIds() {
+        return Collections.unmodifiableMap(sentMessageIds);
     }
 
     public static String createRegexFromGlob(String glob) {
@@ -88,65 +133,161 @@ public class StandardThreemaService implements ThreemaService {
 
     @Override
     public boolean publish(@NonNull Run<?, ?> run, String message) {
-        boolean result = true;
-        for (String recipient : recipients) {
-            //String url = endpoint;
-            URL url;
-            try {
-                url = new URL(THREEMA_API_URL);
-                HttpHost httpHost = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
-                HttpClientBuilder clientBuilder = HttpClients.custom();
-                clientBuilder.setSSLContext(SSLContexts.createDefault());
-                RequestConfig.Builder reqconfigconbuilder = RequestConfig.custom();
-                reqconfigconbuilder.setConnectTimeout(10000);
-                reqconfigconbuilder.setSocketTimeout(10000);
-
-                ProxyConfiguration globalProxy = Jenkins.get().proxy;
-
-                if (globalProxy != null && isProxyRequired(ProxyConfiguration.getNoProxyHostPatterns(globalProxy.getNoProxyHost()))) {
-                    setupProxy(globalProxy, clientBuilder, reqconfigconbuilder);
-                }
+        String text = render(run, message);
+        return deliver(run, text);
+    }
+
+    /**
+     * The full text of a build notification. Rendered when the notification is queued, so that it reports
+     * the build as it was at that time, e.g. still running for a start notification.
+     */
+    String render(Run<?, ?> run, String message) {
+        String text = getBuildStatusMessage(run);
+        if (message != null) {
+            text += " " + message;
+        }
+        return keepFirstBytes(appendLogTail(run, text), MAX_TEXT_BYTES);
+    }
 
-                RequestConfig config = reqconfigconbuilder.build();
-                CloseableHttpClient client = clientBuilder.build();
-                RequestBuilder requestBuilder = RequestBuilder.post(url.toURI());
-                requestBuilder.setConfig(config);
-                requestBuilder.setCharset(StandardCharsets.UTF_8);
+    boolean deliver(Run<?, ?> run, String text) {
+        return deliver(id -> CredentialsProvider.findCredentialById(
+                id,
+                StandardUsernamePasswordCredentials.class,
+                run,
+                Collections.emptyList()
+        ), run, text);
+    }
 
-                StandardUsernamePasswordCredentials credentials = CredentialsProvider.findCredentialById(
-                        this.credentialsId,
+    @Override
+    public CompletableFuture<Boolean> publishAsync(@NonNull Run<?, ?> run, String message, ThreemaDispatcher.Priority priority) {
+        long traced = NotificationTrace.record(run, recipients, priority);
+        String text = render(run, message);
+        NotificationTrace.recordTextSize(traced, utf8Length(text));
+        return ThreemaDispatcher.get().submit(priority, run.getExternalizableId(),
+                snapshot(run, text, priority), () -> deliver(run, text));
+    }
+
+    /**
+     * Queues the message of a {@code threemaSend} step, followed by {@code then} whether the message went
+     * out or not; the result is {@code true} only if both succeeded. Step messages are never dropped or
+     * superseded, nor resent after a restart since the resent message could not complete the step.
+     */
+    public CompletableFuture<Boolean> publishStepAsync(@NonNull Run<?, ?> run, String message, Callable<Boolean> then) {
+        long traced = NotificationTrace.record(run, recipients, ThreemaDispatcher.Priority.NORMAL);
+        String text = render(run, message);
+        NotificationTrace.recordTextSize(traced, utf8Length(text));
+        return ThreemaDispatcher.get().submit(ThreemaDispatcher.Priority.NORMAL, null, null, () -> {
+            boolean published = deliver(run, text);
+            return then.call() && published;
+        });
+    }
+
+    PendingNotification snapshot(Run<?, ?> run, String text, ThreemaDispatcher.Priority priority) {
+        return new PendingNotification(run.getExternalizableId(), text, priority, credentialsId,
+                additionalCredentialsIds, recipient);
+    }
+
+    /**
+     * Sends a message that is not tied to a build, using the credentials as seen by the system.
+     */
+    public boolean publishText(String text) {
+        return deliver(id -> CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(
                         StandardUsernamePasswordCredentials.class,
-                        run,
-                        Collections.emptyList()
-                );
+                        Jenkins.get(),
+                        ACL.SYSTEM,
+                        Collections.emptyList()),
+                CredentialsMatchers.withId(id)), null, text);
+    }
 
-                if (credentials == null) {
-                    logger.log(Level.SEVERE, String.format("Credentials not found: %s", this.credentialsId));
-                    return false;
-                }
+    /**
+     * Sends a message about a job that has no build yet, using the credentials visible to the job, e.g.
+     * those of its folders.
+     */
+    public boolean publishText(@NonNull Item context, String text) {
+        return deliver(id -> CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(
+                        StandardUsernamePasswordCredentials.class,
+                        context,
+                        ACL.SYSTEM,
+                        Collections.emptyList()),
+                CredentialsMatchers.withId(id)), null, text);
+    }
 
-                String text = getBuildStatusMessage(run);
-                if (message != null) {
-                    text += " " + message;
-                }
+    private boolean deliver(Function<String, StandardUsernamePasswordCredentials> resolver, Run<?, ?> run, String text) {
+        // the gateway rejects longer texts outright
+        text = keepFirstBytes(text, MAX_TEXT_BYTES);
+        List<String> pool = GatewayPool.parse(credentialsId, additionalCredentialsIds);
+        Map<String, StandardUsernamePasswordCredentials> resolved = new HashMap<>();
+        for (String id : pool) {
+            StandardUsernamePasswordCredentials credentials = resolver.apply(id);
+            if (credentials == null) {
+                logger.log(Level.SEVERE, String.format("Credentials not found: %s", id));
+            } else {
+                resolved.put(id, credentials);
+            }
+        }
+        if (resolved.isEmpty()) {
+            return false;
+        }
 
-                requestBuilder.addParameter("from", credentials.getUsername());
-                requestBuilder.addParameter("to", recipient);
-                requestBuilder.addParameter("text", text);
-                requestBuilder.addParameter("secret", credentials.getPassword().getPlainText());
-                CloseableHttpResponse execute = client.execute(httpHost, requestBuilder.build());
-                int responseCode = execute.getStatusLine().getStatusCode();
-                if (responseCode != HttpStatus.SC_OK) {
-                    result = false;
-                    logHttpErrorStatus(execute, responseCode, url);
-                } else
-                    logger.info("Status " + responseCode + ": to " + url.getHost() + " " + message);
-            } catch (java.net.URISyntaxException | java.io.IOException e) {
+        boolean result = true;
+        for (String recipient : recipients) {
+            result &= sendTo(resolved, run, recipient, text);
+        }
+        return result;
+    }
+
+    /**
+     * Sends to one recipient through the gateway ID the pool prefers for it, moving on to the next ID
+     * when the gateway rejects the sender (authentication, credits, rate limit). The returned message ID
+     * is recorded against the run, if there is one.
+     */
+    boolean sendTo(Map<String, StandardUsernamePasswordCredentials> pool, Run<?, ?> run, String recipient, String text) {
+        for (String id : GatewayPool.order(new ArrayList<>(pool.keySet()), recipient)) {
+            StandardUsernamePasswordCredentials credentials = pool.get(id);
+            String from = credentials.getUsername();
+            long started = System.currentTimeMillis();
+            if (!RecipientQuarantine.allowSend(from, recipient)) {
+                logger.fine("Skipping quarantined recipient " + recipient + " for " + from);
+                AuditLog.get().record(run, recipient, from, "quarantined", started, null);
+                continue;
+            }
+            try {
+                ThreemaResponse response = transport.send(
+                        from, recipient, text, credentials.getPassword().getPlainText());
+                if (response.isSuccess()) {
+                    GatewayPool.markSuccess(id);
+                    RecipientQuarantine.accept(from, recipient);
+                    CreditLedger.get().record(run == null ? null : run.getParent().getFullName(), from, utf8Length(text));
+                    Long messageId = DeliveryReceipts.parseMessageId(response.getBody());
+                    AuditLog.get().record(run, recipient, from, String.valueOf(response.getStatusCode()), started, messageId);
+                    if (messageId != null) {
+                        sentMessageIds.put(recipient, messageId);
+                        if (run != null) {
+                            DeliveryReceipts.record(run, recipient, messageId);
+                        }
+                    }
+                    logger.info("Status " + response.getStatusCode() + ": to " + recipient);
+                    return true;
+                }
+                logger.log(Level.WARNING, "WARN Status " + response.getStatusCode() + ": to " + recipient + ": " + response.getBody());
+                AuditLog.get().record(run, recipient, from, String.valueOf(response.getStatusCode()), started, null);
+                if (RecipientQuarantine.isPermanent(response.getStatusCode())) {
+                    RecipientQuarantine.reject(from, recipient, response.getStatusCode());
+                    continue;
+                }
+                if (!GatewayPool.isFailover(response.getStatusCode())) {
+                    return false;
+                }
+                GatewayPool.markFailure(id, response.getStatusCode());
+            } catch (IOException e) {
                 logger.log(Level.WARNING, "Error posting to Threema", e);
-                result = false;
+                AuditLog.get().record(run, recipient, from, "error: " + e.getMessage(), started, null);
+                return false;
             }
         }
-        return result;
+        return false;
     }
 
     @Override
@@ -158,56 +299,98 @@ public class StandardThreemaService implements ThreemaService {
         MessageBuilder message = new MessageBuilder(r);
         message.appendStatusMessage();
         message.appendDuration();
+        Result result = r.getResult();
+        if (result != null && result.isCompleteBuild()) {
+            if (notifySlowBuild) {
+                DurationAnomalyDetector detector = DurationAnomalyDetector.get();
+                message.appendDurationAnomaly(detector.getUsualP95(r), detector.getUsualMean(r));
+            }
+            if (result.isWorseThan(Result.SUCCESS)) {
+                message.appendFailureCause(classifyFailure(r));
+            }
+            if (includeTestSummary) {
+                message.appendTestSummary(maxFailedTests);
+            }
+            if (includeCulprits && result.isWorseThan(Result.SUCCESS)) {
+                message.appendCulprits(MAX_CULPRIT_CHANGESETS);
+            }
+        }
         return message.toString();
     }
 
 
-    private void logHttpErrorStatus(CloseableHttpResponse execute, int responseCode, URL hosturl) throws IOException {
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(execute.getEntity().getContent(), Charset.defaultCharset()))) {
-            String collect = bufferedReader.lines().collect(Collectors.joining(" "));
-            logger.log(Level.WARNING, "WARN Status " + responseCode + ": to " + hosturl.getHost() + ": " + collect);
+    private static String classifyFailure(Run<?, ?> r) {
+        ThreemaNotifier.DescriptorImpl descriptor = getServiceDescriptor();
+        if (descriptor == null) {
+            return null;
+        }
+        try {
+            return descriptor.getFailureClassifier().classify(r.getLogFile(), FAILURE_SCAN_BYTES);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not classify console log of " + r.getFullDisplayName(), e);
+            return null;
         }
     }
 
-    private RequestConfig.Builder setupProxy(ProxyConfiguration proxy, HttpClientBuilder clientBuilder, RequestConfig.Builder reqconfigconbuilder) throws MalformedURLException {
-        HttpHost proxyHost = new HttpHost(proxy.name, proxy.port);
-        DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxyHost);
-        clientBuilder.setRoutePlanner(routePlanner);
-        reqconfigconbuilder.setProxy(proxyHost);
+    String appendLogTail(Run<?, ?> r, String text) {
+        Result result = r.getResult();
+        if (logTailLines <= 0 || result == null || !result.isCompleteBuild() || !result.isWorseThan(Result.SUCCESS)) {
+            return text;
+        }
+        String tail;
+        try {
+            tail = ConsoleTail.read(r.getLogFile(), r.getCharset(), logTailLines);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read console log of " + r.getFullDisplayName(), e);
+            return text;
+        }
+        if (tail.isEmpty()) {
+            return text;
+        }
+        int budget = MAX_TEXT_BYTES - utf8Length(text) - 1;
+        if (budget <= 0) {
+            return text;
+        }
+        // keep the end of the log, it is where the failure usually shows
+        String trimmed = keepLastBytes(tail, budget);
+        return trimmed.isEmpty() ? text : text + "\n" + trimmed;
+    }
 
-        setupProxyAuth(proxy, clientBuilder, proxyHost);
-        return reqconfigconbuilder;
+    static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
     }
 
-    private void setupProxyAuth(ProxyConfiguration proxy, HttpClientBuilder clientBuilder, HttpHost proxyHost) {
-        String username = proxy.getUserName();
-        String password = proxy.getPassword();
-        // Consider it to be passed if username specified. Sufficient?
-        if (username != null && !username.isEmpty()) {
-            logger.info("Using proxy authentication (user=" + username + ")");
-            BasicCredentialsProvider basicCredentialsProvider = new BasicCredentialsProvider();
-            basicCredentialsProvider.setCredentials(
-                    new org.apache.http.auth.AuthScope(proxyHost.getHostName(), proxy.port),
-                    new org.apache.http.auth.UsernamePasswordCredentials(username, password));
+    /** The start of {@code s} that fits into {@code maxBytes} of UTF-8, ending in "…" if anything was cut. */
+    static String keepFirstBytes(String s, int maxBytes) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes) {
+            return s;
+        }
+        int to = Math.max(0, maxBytes - ELLIPSIS_BYTES);
+        // do not end in the middle of a multi-byte character
+        while (to > 0 && (bytes[to] & 0xC0) == 0x80) {
+            to--;
+        }
+        return new String(bytes, 0, to, StandardCharsets.UTF_8) + "\u2026";
+    }
 
-            clientBuilder.setDefaultCredentialsProvider(basicCredentialsProvider);
+    static String keepLastBytes(String s, int maxBytes) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes) {
+            return s;
+        }
+        int from = bytes.length - maxBytes;
+        // do not start in the middle of a multi-byte character
+        while (from < bytes.length && (bytes[from] & 0xC0) == 0x80) {
+            from++;
         }
+        String cut = new String(bytes, from, bytes.length - from, StandardCharsets.UTF_8);
+        int newline = cut.indexOf('\n');
+        return newline >= 0 ? cut.substring(newline + 1) : cut;
     }
 
     protected boolean isProxyRequired(List<Pattern> noProxyHosts) {
-        try {
-            URL url = new URL(THREEMA_API_URL);
-            for (Pattern p : noProxyHosts) {
-                if (p.matcher(url.getHost()).matches()) return false;
-            }
-        } catch (MalformedURLException e) {
-            logger.log(
-                    Level.WARNING,
-                    "A malformed URL [" + THREEMA_API_URL + "] is defined as endpoint, please check your settings");
-            // default behavior : proxy still activated
-            return true;
-        }
-        return true;
+        return ApacheThreemaTransport.isProxyRequired(THREEMA_API_URL, noProxyHosts);
     }
 
     @Deprecated
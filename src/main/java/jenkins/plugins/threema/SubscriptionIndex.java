@@ -0,0 +1,130 @@
+package jenkins.plugins.threema;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Job name globs of all subscriptions compiled into one trie over path segments. {@code *} and
+ * {@code ?} match within a segment, {@code **} matches any number of segments. Globs sharing a prefix
+ * share nodes, so matching a job name is a single walk over its segments with a small set of active
+ * nodes, independent of the number of subscriptions.
+ */
+final class SubscriptionIndex {
+
+    static final SubscriptionIndex EMPTY = new SubscriptionIndex();
+
+    private final Node root = new Node(false);
+
+    void add(String glob, String subscriber) {
+        Node node = root;
+        for (String segment : split(glob)) {
+            node = node.child(segment);
+        }
+        node.subscribers.add(subscriber);
+    }
+
+    Set<String> match(String fullName) {
+        List<Node> active = new ArrayList<>();
+        closure(root, active);
+        for (String segment : split(fullName)) {
+            List<Node> next = new ArrayList<>();
+            for (Node node : active) {
+                if (node.anySegments) {
+                    addOnce(node, next);
+                }
+                Node literal = node.literals.get(segment);
+                if (literal != null) {
+                    closure(literal, next);
+                }
+                for (Map.Entry<String, Node> e : node.patterns.entrySet()) {
+                    if (matchesSegment(e.getKey(), segment)) {
+                        closure(e.getValue(), next);
+                    }
+                }
+            }
+            if (next.isEmpty()) {
+                return new LinkedHashSet<>();
+            }
+            active = next;
+        }
+        Set<String> subscribers = new LinkedHashSet<>();
+        for (Node node : active) {
+            subscribers.addAll(node.subscribers);
+        }
+        return subscribers;
+    }
+
+    /** Adds the node and, because {@code **} may match zero segments, any {@code **} node below it. */
+    private static void closure(Node node, List<Node> into) {
+        while (node != null && addOnce(node, into)) {
+            node = node.anySegmentsChild;
+        }
+    }
+
+    private static boolean addOnce(Node node, List<Node> into) {
+        // active sets stay tiny, a list beats hashing here
+        for (Node n : into) {
+            if (n == node) {
+                return false;
+            }
+        }
+        into.add(node);
+        return true;
+    }
+
+    private static String[] split(String path) {
+        return path.replaceAll("^/+|/+$", "").split("/+");
+    }
+
+    static boolean matchesSegment(String pattern, String segment) {
+        int p = 0;
+        int s = 0;
+        int starP = -1;
+        int starS = 0;
+        while (s < segment.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == segment.charAt(s))) {
+                p++;
+                s++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starP = p++;
+                starS = s;
+            } else if (starP >= 0) {
+                p = starP + 1;
+                s = ++starS;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private static final class Node {
+        final boolean anySegments;
+        final Map<String, Node> literals = new HashMap<>();
+        final Map<String, Node> patterns = new HashMap<>();
+        Node anySegmentsChild;
+        final Set<String> subscribers = new LinkedHashSet<>();
+
+        Node(boolean anySegments) {
+            this.anySegments = anySegments;
+        }
+
+        Node child(String segment) {
+            if (segment.equals("**")) {
+                if (anySegmentsChild == null) {
+                    anySegmentsChild = new Node(true);
+                }
+                return anySegmentsChild;
+            }
+            Map<String, Node> target = segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0 ? patterns : literals;
+            return target.computeIfAbsent(segment, k -> new Node(false));
+        }
+    }
+}
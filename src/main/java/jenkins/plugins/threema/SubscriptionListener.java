@@ -0,0 +1,32 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+
+import java.util.Set;
+
+/**
+ * Notifies users subscribed through {@link ThreemaUserProperty} about completed builds of any job type
+ * they are allowed to read.
+ * Plain successes are skipped; failures, recoveries and other results are sent with the default
+ * credentials.
+ */
+@Extension
+public class SubscriptionListener extends RunListener<Run<?, ?>> {
+
+    @Override
+    public void onCompleted(Run<?, ?> r, TaskListener listener) {
+        Set<String> subscribers = ThreemaUserProperty.subscribersOf(r.getParent());
+        if (subscribers.isEmpty() || MessageBuilder.SUCCESS_STATUS_MESSAGE.equals(MessageBuilder.getStatusMessage(r))) {
+            return;
+        }
+        ThreemaNotifier.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(ThreemaNotifier.DescriptorImpl.class);
+        if (descriptor.getCredentialsId() == null) {
+            return;
+        }
+        new StandardThreemaService(descriptor.getCredentialsId(), String.join(",", subscribers)).publishAsync(r, null);
+    }
+}
@@ -0,0 +1,414 @@
+package jenkins.plugins.threema;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.InvisibleAction;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.UnprotectedRootAction;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+import org.acegisecurity.Authentication;
+import org.bouncycastle.util.encoders.DecoderException;
+import org.bouncycastle.util.encoders.Hex;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives Threema Gateway callbacks for incoming messages and delivery receipts at
+ * {@code /threema-callback}. The request thread only checks the MAC and queues the callback; decryption,
+ * public key lookup and command handling run on a small bounded pool, and a full queue answers 503 so
+ * the gateway retries later instead of holding Jetty threads.
+ * <p>
+ * Callbacks older than {@link #MAX_AGE_SECONDS} are rejected, and a message ID seen within that window
+ * is acknowledged without being processed again, so a captured callback cannot be replayed.
+ * <p>
+ * Text messages from {@linkplain ThreemaNotifier.DescriptorImpl#getCallbackAllowedSenders() allowed
+ * senders} are treated as commands: {@code ack <job>} and {@code rebuild <job>}. A command runs as the
+ * Jenkins user whose {@link ThreemaUserProperty} holds the sender's Threema ID, with that user's
+ * permissions.
+ */
+@Extension
+public class ThreemaCallback implements UnprotectedRootAction {
+
+    private static final Logger logger = Logger.getLogger(ThreemaCallback.class.getName());
+
+    static final String URL_NAME = "threema-callback";
+
+    private static final int WORKERS = Integer.getInteger(ThreemaCallback.class.getName() + ".workers", 2);
+    private static final int QUEUE_CAPACITY = Integer.getInteger(ThreemaCallback.class.getName() + ".queueCapacity", 1000);
+    /** How far the {@code date} of a callback may be from the controller's clock, either way. */
+    static final long MAX_AGE_SECONDS = Long.getLong(ThreemaCallback.class.getName() + ".maxAgeSeconds", TimeUnit.MINUTES.toSeconds(10));
+    private static final long SECRETS_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final int TEXT_MESSAGE_TYPE = 0x01;
+    static final int DELIVERY_RECEIPT_TYPE = 0x80;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ExecutorService workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Threema callback"),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    // sender and message ID of the callbacks accepted within MAX_AGE_SECONDS, with the time they expire
+    private final Map<String, Long> seen = new ConcurrentHashMap<>();
+    private volatile GatewaySecrets secrets;
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @RequirePOST
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Callback callback = new Callback(req);
+        if (!callback.isComplete()) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!callback.isFresh(now)) {
+            logger.warning("Rejected stale Threema callback " + callback.messageId + " from " + callback.from + " dated " + callback.date);
+            rsp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        StandardUsernamePasswordCredentials credentials = findGatewayCredentials(callback.to);
+        if (credentials == null || !callback.verify(credentials.getPassword().getPlainText())) {
+            logger.warning("Rejected Threema callback " + callback.messageId + " from " + callback.from + " to " + callback.to);
+            rsp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        String key = callback.from + ':' + callback.messageId;
+        if (!firstSeen(key, now)) {
+            logger.warning("Ignoring replayed Threema callback " + callback.messageId + " from " + callback.from);
+            rsp.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
+        try {
+            workers.execute(() -> process(callback, credentials));
+        } catch (RejectedExecutionException e) {
+            // the gateway retries with the same message ID
+            seen.remove(key);
+            logger.warning("Threema callback queue full, deferring " + callback.messageId);
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        rsp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private boolean firstSeen(String key, long now) {
+        // anything older has failed the date check by now
+        seen.values().removeIf(expires -> expires < now);
+        return seen.putIfAbsent(key, now + TimeUnit.SECONDS.toMillis(2 * MAX_AGE_SECONDS)) == null;
+    }
+
+    private void process(Callback callback, StandardUsernamePasswordCredentials credentials) {
+        String secret = credentials.getPassword().getPlainText();
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            byte[] privateKey = getPrivateKey();
+            if (privateKey == null) {
+                logger.warning("Threema callback " + callback.messageId + " dropped, no private key configured");
+                return;
+            }
+            ThreemaFileSender sender = new ThreemaFileSender();
+            byte[] publicKey = sender.lookupPublicKey(callback.to, secret, callback.from);
+            if (publicKey == null) {
+                return;
+            }
+            byte[] plain = NaCl.open(Hex.decode(callback.box), Hex.decode(callback.nonce), publicKey, privateKey);
+            int padding = plain == null || plain.length == 0 ? 0 : plain[plain.length - 1] & 0xff;
+            if (padding == 0 || padding >= plain.length) {
+                logger.warning("Could not decrypt Threema callback " + callback.messageId + " from " + callback.from);
+                return;
+            }
+            byte[] body = Arrays.copyOfRange(plain, 1, plain.length - padding);
+            switch (plain[0] & 0xff) {
+                case TEXT_MESSAGE_TYPE:
+                    String reply = command(callback.from, new String(body, StandardCharsets.UTF_8).trim());
+                    if (reply != null) {
+                        reply(callback, secret, publicKey, privateKey, reply);
+                    }
+                    break;
+                case DELIVERY_RECEIPT_TYPE:
+                    receipt(callback.from, body);
+                    break;
+                default:
+                    logger.fine("Ignoring Threema message of type " + (plain[0] & 0xff) + " from " + callback.from);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Error processing Threema callback " + callback.messageId, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receipt(String from, byte[] body) {
+        if (body.length < 1 || (body.length - 1) % 8 != 0) {
+            return;
+        }
+        int status = body[0] & 0xff;
+        ByteBuffer ids = ByteBuffer.wrap(body, 1, body.length - 1);
+        while (ids.hasRemaining()) {
+            long messageId = ids.getLong();
+            if (!DeliveryReceipts.update(messageId, status)) {
+                logger.fine("Threema receipt " + status + " from " + from + " for unknown message " + Long.toHexString(messageId));
+            }
+        }
+    }
+
+    /**
+     * Runs a command sent by {@code from} as the Jenkins user with that Threema ID, returns the reply or
+     * {@code null} if the sender is not allowed.
+     */
+    String command(String from, String text) {
+        if (!isAllowedSender(from)) {
+            logger.info("Ignoring Threema message from " + from + ", not an allowed sender");
+            return null;
+        }
+        User user = ThreemaUserProperty.findUser(from);
+        Authentication auth = user == null ? null : ThreemaUserProperty.authenticationOf(user);
+        if (auth == null) {
+            logger.info("Ignoring Threema command from " + from + ", no Jenkins user has this Threema ID");
+            return "Your Threema ID is not set up in any Jenkins user profile";
+        }
+        try (ACLContext ignored = ACL.as(auth)) {
+            return command(from, user, text);
+        }
+    }
+
+    private String command(String from, User user, String text) {
+        String[] words = text.split("\\s+", 2);
+        String verb = words[0].toLowerCase();
+        String jobName = words.length > 1 ? words[1].trim() : null;
+        if (jobName == null || !(verb.equals("ack") || verb.equals("rebuild"))) {
+            return "Unknown command, use \"ack <job>\" or \"rebuild <job>\"";
+        }
+        Job<?, ?> job = Jenkins.get().getItemByFullName(jobName, Job.class);
+        if (job == null) {
+            return "No such job: " + jobName;
+        }
+        if (verb.equals("ack")) {
+            Run<?, ?> run = job.getLastFailedBuild();
+            if (run == null) {
+                return jobName + " has no failed build";
+            }
+            run.addAction(new Acknowledgement(from, System.currentTimeMillis()));
+            try {
+                run.save();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not save " + run, e);
+            }
+            logger.info(from + " (" + user.getId() + ") acknowledged " + run.getFullDisplayName());
+            return "Acknowledged " + run.getFullDisplayName();
+        }
+        if (!(job instanceof ParameterizedJobMixIn.ParameterizedJob)) {
+            return jobName + " cannot be scheduled";
+        }
+        if (!job.hasPermission(Item.BUILD)) {
+            return user.getId() + " may not build " + jobName;
+        }
+        boolean scheduled = ParameterizedJobMixIn.scheduleBuild2(job, -1,
+                new CauseAction(new Cause.RemoteCause("Threema", from))) != null;
+        logger.info(from + " (" + user.getId() + ") scheduled " + jobName + ": " + scheduled);
+        return scheduled ? "Scheduled " + jobName : "Could not schedule " + jobName;
+    }
+
+    private void reply(Callback callback, String secret, byte[] publicKey, byte[] privateKey, String text) throws IOException {
+        byte[] nonce = new byte[NaCl.NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        byte[] box = NaCl.box(ThreemaFileSender.message(TEXT_MESSAGE_TYPE, text.getBytes(StandardCharsets.UTF_8)),
+                nonce, publicKey, privateKey);
+        ThreemaResponse response = ApacheThreemaTransport.get().sendE2E(
+                callback.to, callback.from, Hex.toHexString(nonce), Hex.toHexString(box), secret);
+        if (response.isSuccess()) {
+            CreditLedger.get().record(null, callback.to, box.length);
+        } else {
+            logger.log(Level.WARNING, "WARN Status " + response.getStatusCode() + ": reply to " + callback.from + ": " + response.getBody());
+        }
+    }
+
+    private static boolean isAllowedSender(String from) {
+        String allowed = getDescriptor().getCallbackAllowedSenders();
+        return allowed != null && Arrays.asList(allowed.toUpperCase().split("[,;\\s]+")).contains(from.toUpperCase());
+    }
+
+    private static byte[] getPrivateKey() {
+        String id = getDescriptor().getCallbackPrivateKeyCredentialsId();
+        StringCredentials credentials = id == null ? null : CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(
+                        StringCredentials.class, Jenkins.get(), ACL.SYSTEM, Collections.emptyList()),
+                CredentialsMatchers.withId(id));
+        return credentials == null ? null : ThreemaFileSender.decodePrivateKey(credentials.getSecret().getPlainText());
+    }
+
+    /**
+     * The credentials of a gateway ID, from a table of all gateway credentials that is looked up at most
+     * every {@link #SECRETS_MILLIS}, so that unauthenticated requests cannot make the controller walk the
+     * credential stores.
+     */
+    private StandardUsernamePasswordCredentials findGatewayCredentials(String gatewayId) {
+        long now = System.currentTimeMillis();
+        GatewaySecrets current = secrets;
+        if (current == null || current.expires < now) {
+            Map<String, StandardUsernamePasswordCredentials> byUsername = new HashMap<>();
+            for (StandardUsernamePasswordCredentials c : CredentialsProvider.lookupCredentials(
+                    StandardUsernamePasswordCredentials.class, Jenkins.get(), ACL.SYSTEM, Collections.emptyList())) {
+                byUsername.putIfAbsent(c.getUsername(), c);
+            }
+            current = new GatewaySecrets(now + SECRETS_MILLIS, byUsername);
+            secrets = current;
+        }
+        return current.byUsername.get(gatewayId);
+    }
+
+    private static ThreemaNotifier.DescriptorImpl getDescriptor() {
+        return Jenkins.get().getDescriptorByType(ThreemaNotifier.DescriptorImpl.class);
+    }
+
+    static final class Callback {
+        final String from;
+        final String to;
+        final String messageId;
+        final String date;
+        final String nonce;
+        final String box;
+        final String mac;
+
+        Callback(StaplerRequest req) {
+            from = Util.fixEmptyAndTrim(req.getParameter("from"));
+            to = Util.fixEmptyAndTrim(req.getParameter("to"));
+            messageId = Util.fixEmptyAndTrim(req.getParameter("messageId"));
+            date = Util.fixEmptyAndTrim(req.getParameter("date"));
+            nonce = Util.fixEmptyAndTrim(req.getParameter("nonce"));
+            box = Util.fixEmptyAndTrim(req.getParameter("box"));
+            mac = Util.fixEmptyAndTrim(req.getParameter("mac"));
+        }
+
+        boolean isComplete() {
+            return from != null && to != null && messageId != null && date != null
+                    && nonce != null && box != null && mac != null;
+        }
+
+        /** Whether {@code date}, in seconds since the epoch, is within {@link #MAX_AGE_SECONDS} of {@code now}. */
+        boolean isFresh(long now) {
+            try {
+                return Math.abs(TimeUnit.MILLISECONDS.toSeconds(now) - Long.parseLong(date)) <= MAX_AGE_SECONDS;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        /** HMAC-SHA256 over the concatenated fields, keyed with the API secret, compared in constant time. */
+        boolean verify(String secret) {
+            byte[] expected;
+            try {
+                expected = Hex.decode(mac);
+            } catch (DecoderException e) {
+                return false;
+            }
+            try {
+                Mac hmac = Mac.getInstance("HmacSHA256");
+                hmac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                byte[] actual = hmac.doFinal((from + to + messageId + date + nonce + box).getBytes(StandardCharsets.UTF_8));
+                return MessageDigest.isEqual(actual, expected);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class GatewaySecrets {
+        final long expires;
+        final Map<String, StandardUsernamePasswordCredentials> byUsername;
+
+        GatewaySecrets(long expires, Map<String, StandardUsernamePasswordCredentials> byUsername) {
+            this.expires = expires;
+            this.byUsername = byUsername;
+        }
+    }
+
+    /** Marks a failed build as acknowledged from a Threema reply. */
+    public static class Acknowledgement extends InvisibleAction {
+        private final String threemaId;
+        private final long timestamp;
+
+        Acknowledgement(String threemaId, long timestamp) {
+            this.threemaId = threemaId;
+            this.timestamp = timestamp;
+        }
+
+        public String getThreemaId() {
+            return threemaId;
+        }
+
+        public Date getTimestamp() {
+            return new Date(timestamp);
+        }
+    }
+
+    /** Gateway callbacks cannot carry a crumb. */
+    @Extension
+    public static class CallbackCrumbExclusion extends CrumbExclusion {
+        @Override
+        public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+                throws IOException, ServletException {
+            String path = req.getPathInfo();
+            if (path != null && (path.equals("/" + URL_NAME) || path.startsWith("/" + URL_NAME + "/"))) {
+                chain.doFilter(req, resp);
+                return true;
+            }
+            return false;
+        }
+    }
+}
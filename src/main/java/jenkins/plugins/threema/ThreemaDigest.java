@@ -0,0 +1,302 @@
+package jenkins.plugins.threema;
+
+import antlr.ANTLRException;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.matrix.MatrixRun;
+import hudson.model.ItemGroup;
+import hudson.model.PeriodicWork;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.Util;
+import hudson.scheduler.CronTabList;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodic build summary. Completed builds are folded into per-folder counters as they finish, so
+ * rendering a digest only walks the folders seen since the last one and never touches build history.
+ * The counters of the digest in progress are written to {@code threema-digest.tsv} on shutdown and read
+ * back on startup; builds completed since the last clean shutdown are lost if the controller crashes.
+ */
+@Extension
+public class ThreemaDigest extends PeriodicWork {
+
+    private static final Logger logger = Logger.getLogger(ThreemaDigest.class.getName());
+
+    private static final int MAX_FOLDER_LINES = 30;
+    private static final int TOP_FAILING_JOBS = 5;
+
+    private final AtomicReference<Window> current = new AtomicReference<>(new Window(System.currentTimeMillis()));
+    // held shared while counting into the current window and exclusively to replace it, so that no count
+    // lands in a window that is already being rendered
+    private final ReadWriteLock swap = new ReentrantReadWriteLock();
+
+    private String cronSpec;
+    private CronTabList cronTabs;
+    private long lastFiredMinute;
+
+    public static ThreemaDigest get() {
+        return ExtensionList.lookupSingleton(ThreemaDigest.class);
+    }
+
+    void record(Run<?, ?> run) {
+        if (Util.fixEmptyAndTrim(getDescriptor().getDigestSchedule()) == null) {
+            return;
+        }
+        Result result = run.getResult();
+        if (result == null) {
+            return;
+        }
+        ItemGroup<?> folder = run.getParent().getParent();
+        swap.readLock().lock();
+        try {
+            Window window = current.get();
+            FolderCounters counters = window.folders.computeIfAbsent(folder.getFullName(), k -> new FolderCounters());
+            if (result == Result.SUCCESS) {
+                counters.succeeded.increment();
+            } else if (result == Result.FAILURE || result == Result.UNSTABLE) {
+                counters.failed.increment();
+                window.failingJobs.computeIfAbsent(run.getParent().getFullName(), k -> new LongAdder()).increment();
+            } else {
+                counters.other.increment();
+            }
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+
+    private Window takeWindow() {
+        swap.writeLock().lock();
+        try {
+            return current.getAndSet(new Window(System.currentTimeMillis()));
+        } finally {
+            swap.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        ThreemaNotifier.DescriptorImpl descriptor = getDescriptor();
+        String spec = Util.fixEmptyAndTrim(descriptor.getDigestSchedule());
+        if (spec == null) {
+            return;
+        }
+        CronTabList tabs = getCronTabs(spec);
+        Calendar now = Calendar.getInstance();
+        long minute = now.getTimeInMillis() / MIN;
+        if (tabs == null || minute == lastFiredMinute || !tabs.check(now)) {
+            return;
+        }
+        lastFiredMinute = minute;
+        String recipient = Util.fixEmptyAndTrim(descriptor.getDigestRecipient());
+        if (recipient == null) {
+            recipient = Util.fixEmptyAndTrim(descriptor.getRecipient());
+        }
+        if (recipient == null || descriptor.getCredentialsId() == null) {
+            logger.warning("Threema digest is scheduled but no default credentials or recipient are configured");
+            return;
+        }
+        Window window = takeWindow();
+        new StandardThreemaService(descriptor.getCredentialsId(), recipient).publishText(render(window));
+    }
+
+    String render(Window window) {
+        StringBuilder out = new StringBuilder("Build digest since ")
+                .append(Util.getTimeSpanString(System.currentTimeMillis() - window.started))
+                .append(" ago");
+        if (window.folders.isEmpty()) {
+            return out.append(": no builds").toString();
+        }
+
+        List<Map.Entry<String, FolderCounters>> folders = new ArrayList<>(window.folders.entrySet());
+        folders.sort(Map.Entry.comparingByKey());
+        int lines = 0;
+        for (Map.Entry<String, FolderCounters> e : folders) {
+            if (lines++ == MAX_FOLDER_LINES) {
+                out.append("\n… ").append(folders.size() - MAX_FOLDER_LINES).append(" more folders");
+                break;
+            }
+            FolderCounters c = e.getValue();
+            out.append('\n').append(e.getKey().isEmpty() ? "(top level)" : e.getKey())
+                    .append(": ").append(c.succeeded.sum()).append(" ✓ ")
+                    .append(c.failed.sum()).append(" ✗");
+            long other = c.other.sum();
+            if (other > 0) {
+                out.append(' ').append(other).append(" other");
+            }
+        }
+
+        List<Map.Entry<String, LongAdder>> failing = new ArrayList<>(window.failingJobs.entrySet());
+        if (!failing.isEmpty()) {
+            failing.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+            out.append("\nTop failing:");
+            for (Map.Entry<String, LongAdder> e : failing.subList(0, Math.min(TOP_FAILING_JOBS, failing.size()))) {
+                out.append("\n").append(e.getKey()).append(" (").append(e.getValue().sum()).append(')');
+            }
+        }
+        return out.toString();
+    }
+
+    @Terminator
+    public static void saveOnShutdown() {
+        Window window = get().takeWindow();
+        if (window.folders.isEmpty()) {
+            return;
+        }
+        File file = getFile();
+        try {
+            AtomicFileWriter writer = new AtomicFileWriter(file.toPath(), StandardCharsets.UTF_8);
+            try {
+                writer.write("started\t" + window.started + '\n');
+                for (Map.Entry<String, FolderCounters> e : window.folders.entrySet()) {
+                    FolderCounters c = e.getValue();
+                    writer.write("folder\t" + e.getKey() + '\t' + c.succeeded.sum() + '\t' + c.failed.sum() + '\t' + c.other.sum() + '\n');
+                }
+                for (Map.Entry<String, LongAdder> e : window.failingJobs.entrySet()) {
+                    writer.write("failing\t" + e.getKey() + '\t' + e.getValue().sum() + '\n');
+                }
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void loadOnStartup() {
+        File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+        Window window = null;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals("started") && fields.length == 2) {
+                    window = new Window(Long.parseLong(fields[1]));
+                } else if (window != null && fields[0].equals("folder") && fields.length == 5) {
+                    FolderCounters c = window.folders.computeIfAbsent(fields[1], k -> new FolderCounters());
+                    c.succeeded.add(Long.parseLong(fields[2]));
+                    c.failed.add(Long.parseLong(fields[3]));
+                    c.other.add(Long.parseLong(fields[4]));
+                } else if (window != null && fields[0].equals("failing") && fields.length == 3) {
+                    window.failingJobs.computeIfAbsent(fields[1], k -> new LongAdder()).add(Long.parseLong(fields[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Could not read " + file, e);
+            return;
+        }
+        if (window != null) {
+            get().restore(window);
+        }
+        if (!file.delete()) {
+            logger.warning("Could not delete " + file);
+        }
+    }
+
+    /** Counts {@code saved} into the current window, which then reaches back to when {@code saved} started. */
+    private void restore(Window saved) {
+        swap.writeLock().lock();
+        try {
+            Window window = current.get();
+            Window merged = new Window(Math.min(saved.started, window.started));
+            for (Window w : new Window[] {saved, window}) {
+                for (Map.Entry<String, FolderCounters> e : w.folders.entrySet()) {
+                    FolderCounters c = merged.folders.computeIfAbsent(e.getKey(), k -> new FolderCounters());
+                    c.succeeded.add(e.getValue().succeeded.sum());
+                    c.failed.add(e.getValue().failed.sum());
+                    c.other.add(e.getValue().other.sum());
+                }
+                for (Map.Entry<String, LongAdder> e : w.failingJobs.entrySet()) {
+                    merged.failingJobs.computeIfAbsent(e.getKey(), k -> new LongAdder()).add(e.getValue().sum());
+                }
+            }
+            current.set(merged);
+        } finally {
+            swap.writeLock().unlock();
+        }
+    }
+
+    private static File getFile() {
+        return new File(Jenkins.get().getRootDir(), "threema-digest.tsv");
+    }
+
+    private synchronized CronTabList getCronTabs(String spec) {
+        if (!spec.equals(cronSpec)) {
+            try {
+                cronTabs = CronTabList.create(spec);
+            } catch (ANTLRException e) {
+                logger.log(Level.WARNING, "Invalid Threema digest schedule: " + spec, e);
+                cronTabs = null;
+            }
+            cronSpec = spec;
+        }
+        return cronTabs;
+    }
+
+    private static ThreemaNotifier.DescriptorImpl getDescriptor() {
+        return Jenkins.get().getDescriptorByType(ThreemaNotifier.DescriptorImpl.class);
+    }
+
+    static final class Window {
+        final long started;
+        final Map<String, FolderCounters> folders = new ConcurrentHashMap<>();
+        final Map<String, LongAdder> failingJobs = new ConcurrentHashMap<>();
+
+        Window(long started) {
+            this.started = started;
+        }
+    }
+
+    static final class FolderCounters {
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder other = new LongAdder();
+    }
+
+    /**
+     * Feeds completed runs of every job type into the digest. Matrix configurations are left out so a
+     * matrix build counts once, through its parent.
+     */
+    @Extension
+    public static final class Feed extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onCompleted(Run<?, ?> r, TaskListener listener) {
+            if (!(r instanceof MatrixRun)) {
+                get().record(r);
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package jenkins.plugins.threema;
+
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs notification sends off the build, listener and CPS threads. Sends run on a bounded platform
+ * thread pool unless {@link ThreemaNotifier.DescriptorImpl#getDispatchOnVirtualThreads()} is set and the
+ * controller JVM supports virtual threads (JDK 21+), in which case every send gets its own virtual thread.
+ * {@code DispatchBenchmark} in the test sources compares the two modes against a stub gateway.
+ * <p>
+ * Only a limited number of sends are in flight at once. The rest wait in one FIFO queue per
+ * {@link Priority}; the most urgent queue is served first, but a waiting send gains one level every
+ * {@link #AGING_MILLIS} so low priority messages still go out under sustained load. When more than
+ * {@link #CAPACITY} sends are waiting, the oldest {@link Priority#LOW} send is dropped. Higher priority
+ * sends are still queued beyond that soft limit, with a warning, until {@link #MAX_QUEUED} are waiting;
+ * further sends are refused and their future fails with a {@link RejectedExecutionException}.
+ * <p>
+ * On shutdown the dispatcher stops taking new sends and waits up to
+ * {@link ThreemaNotifier.DescriptorImpl#getShutdownDrainSeconds()} for the queue to empty. Build
+ * notifications still waiting after that are written to {@code threema-pending.xml} and sent once
+ * Jenkins is back. Sends without such a notification, e.g. {@code threemaSend} steps, are dropped and
+ * their future fails with a cancellation that {@link #isDeferredByShutdown(Throwable)} recognizes.
+ */
+public final class ThreemaDispatcher {
+
+    private static final Logger logger = Logger.getLogger(ThreemaDispatcher.class.getName());
+
+    private static final int PLATFORM_THREADS = Integer.getInteger(ThreemaDispatcher.class.getName() + ".platformThreads", 8);
+    // HttpClient 4 waits for a pooled connection inside a synchronized block, which pins the carrier thread;
+    // with more virtual threads than connections the waiters can take every carrier from the threads
+    // that hold the connections, and nothing moves any more
+    private static final int VIRTUAL_IN_FLIGHT = Math.min(ApacheThreemaTransport.MAX_CONNECTIONS,
+            Integer.getInteger(ThreemaDispatcher.class.getName() + ".virtualInFlight", ApacheThreemaTransport.MAX_CONNECTIONS));
+    static final int CAPACITY = Integer.getInteger(ThreemaDispatcher.class.getName() + ".capacity", 1000);
+    static final int MAX_QUEUED = Math.max(CAPACITY, Integer.getInteger(ThreemaDispatcher.class.getName() + ".maxQueued", 10 * CAPACITY));
+    static final long AGING_MILLIS = Long.getLong(ThreemaDispatcher.class.getName() + ".agingMillis", TimeUnit.SECONDS.toMillis(30));
+
+    private static final ThreemaDispatcher INSTANCE = new ThreemaDispatcher(ThreemaDispatcher::isVirtualThreadsRequested);
+
+    public enum Priority {
+        /** Failures and recoveries. */
+        HIGH,
+        /** Everything else, including explicit {@code threemaSend} messages. */
+        NORMAL,
+        /** Start notifications and plain successes; may be dropped or superseded. */
+        LOW;
+
+        /** Priority of a build notification, from the build result whatever text is appended to it. */
+        static Priority of(Run<?, ?> run) {
+            String status = MessageBuilder.getStatusMessage(run);
+            switch (status) {
+                case MessageBuilder.FAILURE_STATUS_MESSAGE:
+                case MessageBuilder.STILL_FAILING_STATUS_MESSAGE:
+                case MessageBuilder.BACK_TO_NORMAL_STATUS_MESSAGE:
+                    return HIGH;
+                case MessageBuilder.STARTING_STATUS_MESSAGE:
+                case MessageBuilder.SUCCESS_STATUS_MESSAGE:
+                    return LOW;
+                default:
+                    return NORMAL;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Item<?>>[] queues = new ArrayDeque[Priority.values().length];
+    private int queued;
+    private boolean overCapacity;
+    private int inFlight;
+    private final List<Item<?>> running = new ArrayList<>();
+    private boolean accepting = true;
+    private final List<PendingNotification> deferred = new ArrayList<>();
+
+    private final BooleanSupplier virtualThreadsRequested;
+    private ExecutorService executor;
+    private boolean virtualRequested;
+    private boolean virtual;
+
+    /** A dispatcher of its own, e.g. for the {@code DispatchBenchmark} in the test sources. */
+    ThreemaDispatcher(BooleanSupplier virtualThreadsRequested) {
+        this.virtualThreadsRequested = virtualThreadsRequested;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    public static ThreemaDispatcher get() {
+        return INSTANCE;
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submit(Priority.NORMAL, null, task);
+    }
+
+    /**
+     * Queues a send. A non-{@link Priority#LOW} send with a {@code key} supersedes low priority sends
+     * with the same key that have not started yet, e.g. the start message of a build that has already
+     * completed.
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, String key, Callable<T> task) {
+        return submit(priority, key, null, task);
+    }
+
+    /**
+     * Queues a send that can be written to disk with {@code pending} if it has not run by the time
+     * Jenkins shuts down.
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, String key, PendingNotification pending, Callable<T> task) {
+        Item<T> item = new Item<>(key, pending, task);
+        synchronized (this) {
+            if (!accepting) {
+                defer(item);
+                return item.future;
+            }
+            if (key != null && priority != Priority.LOW) {
+                dropLow(i -> key.equals(i.key), true, "superseded");
+            }
+            if (queued >= MAX_QUEUED && (priority == Priority.LOW || queues[Priority.LOW.ordinal()].isEmpty())) {
+                logger.warning("Refusing Threema notification, " + queued + " notifications are already waiting");
+                item.future.completeExceptionally(new RejectedExecutionException("Threema notification queue is full"));
+                return item.future;
+            }
+            queues[priority.ordinal()].addLast(item);
+            queued++;
+            if (queued > CAPACITY) {
+                dropLow(i -> true, false, "queue saturated");
+            }
+            if (queued > CAPACITY && !overCapacity) {
+                overCapacity = true;
+                logger.warning("More than " + CAPACITY + " Threema notifications are waiting and none of them can be dropped");
+            }
+        }
+        pump();
+        return item.future;
+    }
+
+    /**
+     * Cancels a send returned by {@code submit}: a queued send is removed from its queue, a running one is
+     * interrupted. Either way the future fails with a {@link CancellationException}.
+     */
+    public void cancel(CompletableFuture<?> future) {
+        Item<?> found = null;
+        synchronized (this) {
+            for (ArrayDeque<Item<?>> queue : queues) {
+                for (Iterator<Item<?>> it = queue.iterator(); found == null && it.hasNext(); ) {
+                    Item<?> item = it.next();
+                    if (item.future == future) {
+                        it.remove();
+                        queued--;
+                        found = item;
+                    }
+                }
+            }
+            for (Iterator<Item<?>> it = running.iterator(); found == null && it.hasNext(); ) {
+                Item<?> item = it.next();
+                if (item.future == future) {
+                    found = item;
+                }
+            }
+        }
+        // completed before the interrupt, or the send would fail the future with its InterruptedException
+        future.completeExceptionally(new CancellationException("cancelled"));
+        if (found != null) {
+            found.interrupt();
+        }
+    }
+
+    /** Whether a send failed because Jenkins shut down before it could run. */
+    public static boolean isDeferredByShutdown(Throwable error) {
+        return error instanceof ShutdownCancellation;
+    }
+
+    public synchronized boolean isVirtual() {
+        return virtual;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void pump() {
+        while (true) {
+            Item<?> next;
+            ExecutorService target;
+            synchronized (this) {
+                target = getExecutor();
+                if (inFlight >= (virtual ? VIRTUAL_IN_FLIGHT : PLATFORM_THREADS)) {
+                    return;
+                }
+                next = poll(System.currentTimeMillis());
+                if (next == null) {
+                    return;
+                }
+                inFlight++;
+                running.add(next);
+            }
+            final Item<?> item = next;
+            try {
+                target.execute(() -> {
+                    try {
+                        item.run();
+                    } finally {
+                        synchronized (ThreemaDispatcher.this) {
+                            inFlight--;
+                            running.remove(item);
+                            ThreemaDispatcher.this.notifyAll();
+                        }
+                        pump();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    inFlight--;
+                    running.remove(item);
+                    notifyAll();
+                }
+                item.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /** Milestone attained once the queue has been drained or persisted on shutdown. */
+    static final String DRAINED = "threema-dispatcher-drained";
+
+    @Terminator(attains = DRAINED)
+    public static void drainOnShutdown() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        ThreemaNotifier.DescriptorImpl descriptor = jenkins != null
+                ? jenkins.getDescriptorByType(ThreemaNotifier.DescriptorImpl.class) : null;
+        int seconds = descriptor != null ? descriptor.getShutdownDrainSeconds() : 10;
+        get().drain(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    @SuppressWarnings("unchecked")
+    public static void resendDeferred() {
+        // the dispatcher outlives a restart of Jenkins within the same JVM
+        get().resume();
+        XmlFile file = getPendingFile();
+        if (!file.exists()) {
+            return;
+        }
+        List<PendingNotification> pending;
+        try {
+            pending = (List<PendingNotification>) file.read();
+            file.delete();
+        } catch (IOException | ClassCastException e) {
+            logger.log(Level.WARNING, "Could not read deferred Threema notifications from " + file, e);
+            return;
+        }
+        logger.info("Sending " + pending.size() + " Threema notifications deferred by the last shutdown");
+        for (PendingNotification notification : pending) {
+            get().submit(notification.getPriority(), notification.getRunId(), notification, notification::send);
+        }
+    }
+
+    synchronized void resume() {
+        accepting = true;
+    }
+
+    /**
+     * Stops accepting sends, waits up to {@code timeoutMillis} for queued and running sends to finish and
+     * persists what is left.
+     */
+    void drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int drained;
+        int running;
+        List<PendingNotification> remainder;
+        synchronized (this) {
+            accepting = false;
+            int initial = queued + inFlight;
+            long left;
+            while (queued + inFlight > 0 && (left = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            drained = initial - queued - inFlight;
+            running = inFlight;
+            for (ArrayDeque<Item<?>> queue : queues) {
+                for (Item<?> item; (item = queue.pollFirst()) != null; ) {
+                    queued--;
+                    defer(item);
+                }
+            }
+            remainder = new ArrayList<>(deferred);
+            deferred.clear();
+        }
+        logger.info("Threema shutdown: " + drained + " notifications sent, " + remainder.size()
+                + " deferred until restart, " + running + " still running at the deadline");
+        for (PendingNotification notification : remainder) {
+            logger.fine("Deferred Threema notification " + notification);
+        }
+        if (!remainder.isEmpty()) {
+            try {
+                getPendingFile().write(remainder);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not persist " + remainder.size() + " deferred Threema notifications", e);
+            }
+        }
+    }
+
+    private void defer(Item<?> item) {
+        if (item.pending != null) {
+            deferred.add(item.pending);
+        } else {
+            logger.warning("Dropping Threema notification during shutdown, it cannot be deferred");
+        }
+        item.future.completeExceptionally(new ShutdownCancellation());
+    }
+
+    private static XmlFile getPendingFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), "threema-pending.xml"));
+    }
+
+    /** Picks the queue head with the best priority after aging; ties go to the more urgent queue. */
+    private Item<?> poll(long now) {
+        int best = -1;
+        long bestRank = Long.MAX_VALUE;
+        for (int level = 0; level < queues.length; level++) {
+            Item<?> head = queues[level].peekFirst();
+            if (head == null) {
+                continue;
+            }
+            long rank = level - (now - head.enqueued) / AGING_MILLIS;
+            if (rank < bestRank) {
+                bestRank = rank;
+                best = level;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        queued--;
+        if (queued <= CAPACITY) {
+            overCapacity = false;
+        }
+        return queues[best].pollFirst();
+    }
+
+    private void dropLow(Predicate<Item<?>> filter, boolean all, String reason) {
+        for (Iterator<Item<?>> it = queues[Priority.LOW.ordinal()].iterator(); it.hasNext(); ) {
+            Item<?> item = it.next();
+            if (filter.test(item)) {
+                it.remove();
+                queued--;
+                item.future.completeExceptionally(new CancellationException(reason));
+                logger.fine("Dropped low priority Threema notification: " + reason);
+                if (!all) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        boolean wantVirtual = virtualThreadsRequested.getAsBoolean();
+        // compared with what was asked for last time, not with what was granted: on a JVM without virtual
+        // threads the fallback would otherwise be replaced on every send
+        if (executor == null || wantVirtual != virtualRequested) {
+            virtualRequested = wantVirtual;
+            executor = wantVirtual ? newVirtualThreadExecutor() : null;
+            virtual = executor != null;
+            if (executor == null) {
+                executor = newPlatformExecutor();
+            }
+            // the previous executor is not shut down, pump() may be handing it a send right now; its idle
+            // threads time out by themselves
+            logger.info("Dispatching Threema notifications on " + (virtual ? "virtual threads" : PLATFORM_THREADS + " platform threads"));
+        }
+        return executor;
+    }
+
+    private static boolean isVirtualThreadsRequested() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return false;
+        }
+        ThreemaNotifier.DescriptorImpl descriptor = jenkins.getDescriptorByType(ThreemaNotifier.DescriptorImpl.class);
+        return descriptor != null && descriptor.getDispatchOnVirtualThreads();
+    }
+
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            logger.fine("Virtual threads are not available on this JVM, using platform threads");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not create virtual thread executor, using platform threads", e);
+        }
+        return null;
+    }
+
+    static ExecutorService newPlatformExecutor() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                PLATFORM_THREADS, PLATFORM_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "ThreemaDispatcher"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static final class Item<T> {
+        final String key;
+        final PendingNotification pending;
+        final Callable<T> task;
+        final long enqueued = System.currentTimeMillis();
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Item(String key, PendingNotification pending, Callable<T> task) {
+            this.key = key;
+            this.pending = pending;
+            this.task = task;
+        }
+
+        private Thread runner;
+
+        void run() {
+            synchronized (this) {
+                if (future.isDone()) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    // do not leak a late cancellation into the next send on this thread
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        synchronized void interrupt() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    private static final class ShutdownCancellation extends CancellationException {
+        private static final long serialVersionUID = 1L;
+
+        ShutdownCancellation() {
+            super("deferred until restart");
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package jenkins.plugins.threema;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONObject;
+import org.bouncycastle.util.encoders.Hex;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a workspace file as an end-to-end encrypted Threema file message: the file is encrypted with a
+ * fresh key, uploaded to the blob store, and a file message referencing the blob is sent to each
+ * recipient.
+ * <p>
+ * The file is streamed twice and never held in memory: the first pass computes the content hash and the
+ * Poly1305 tag, which has to precede the ciphertext in the upload, and runs where the file is. The second
+ * pass encrypts straight into the upload request. Blobs are uploaded as persistent, so that every
+ * recipient can download them, and are reused for {@link #BLOB_REUSE_MILLIS} when the same gateway ID
+ * sends the same content again.
+ * <p>
+ * Given an agent channel, every gateway call (upload, public key lookup, send) is made from the agent JVM,
+ * like {@link RemoteThreemaTransport} does for text messages, and the file does not cross the channel.
+ */
+public class ThreemaFileSender {
+
+    private static final Logger logger = Logger.getLogger(ThreemaFileSender.class.getName());
+
+    public static final long MAX_FILE_BYTES = 50L * 1024 * 1024;
+    static final long BLOB_REUSE_MILLIS = TimeUnit.HOURS.toMillis(6);
+    // a recipient who revokes and recreates their ID gets a new key
+    static final long PUBLIC_KEY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final int FILE_MESSAGE_TYPE = 0x17;
+    // blobs use a random key, so the nonce is fixed
+    private static final byte[] BLOB_NONCE = new byte[NaCl.NONCE_BYTES];
+
+    static {
+        BLOB_NONCE[NaCl.NONCE_BYTES - 1] = 1;
+    }
+
+    private static final int DIGEST_BYTES = 32;
+
+    private static final Map<String, Blob> BLOBS = new ConcurrentHashMap<>();
+    private static final Map<String, PublicKey> PUBLIC_KEYS = new ConcurrentHashMap<>();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ApacheThreemaTransport transport;
+    private final VirtualChannel agent;
+
+    public ThreemaFileSender() {
+        this(ApacheThreemaTransport.get(), null);
+    }
+
+    /**
+     * @param agent the channel to make the gateway calls from, {@code null} to make them from the
+     *              controller through {@code transport}
+     */
+    public ThreemaFileSender(ApacheThreemaTransport transport, VirtualChannel agent) {
+        this.transport = transport;
+        this.agent = agent;
+    }
+
+    public boolean send(Run<?, ?> run, FilePath file, String credentialsId, String privateKeyCredentialsId, String recipient)
+            throws IOException, InterruptedException {
+        StandardUsernamePasswordCredentials credentials = CredentialsProvider.findCredentialById(
+                credentialsId, StandardUsernamePasswordCredentials.class, run, Collections.emptyList());
+        StringCredentials privateKey = CredentialsProvider.findCredentialById(
+                privateKeyCredentialsId, StringCredentials.class, run, Collections.emptyList());
+        if (credentials == null || privateKey == null) {
+            logger.log(Level.SEVERE, String.format("Credentials not found: %s / %s", credentialsId, privateKeyCredentialsId));
+            return false;
+        }
+        if (!file.exists()) {
+            logger.warning("Threema file message not sent, " + file.getRemote() + " does not exist");
+            return false;
+        }
+        long size = file.length();
+        if (size > MAX_FILE_BYTES) {
+            logger.warning("Threema file message not sent, " + file.getRemote() + " is larger than " + MAX_FILE_BYTES + " bytes");
+            return false;
+        }
+
+        String from = credentials.getUsername();
+        String secret = credentials.getPassword().getPlainText();
+        byte[] key = decodePrivateKey(privateKey.getSecret().getPlainText());
+
+        Blob blob = upload(file, size, from, secret);
+        if (blob == null) {
+            return false;
+        }
+        byte[] content = fileMessage(blob, file.getName());
+        boolean result = true;
+        for (String to : recipient.split("[,;]+")) {
+            byte[] publicKey = lookupPublicKey(from, secret, to);
+            if (publicKey == null) {
+                result = false;
+                continue;
+            }
+            byte[] nonce = new byte[NaCl.NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            byte[] box = NaCl.box(content, nonce, publicKey, key);
+            long started = System.currentTimeMillis();
+            ThreemaResponse response = call(new SendE2E(from, to, Hex.toHexString(nonce), Hex.toHexString(box), secret));
+            if (response.isSuccess()) {
+                CreditLedger.get().record(run.getParent().getFullName(), from, box.length);
+                Long messageId = DeliveryReceipts.parseMessageId(response.getBody());
+                AuditLog.get().record(run, to, from, String.valueOf(response.getStatusCode()), started, messageId);
+                if (messageId != null) {
+                    DeliveryReceipts.record(run, to, messageId);
+                }
+                logger.info("Status " + response.getStatusCode() + ": file " + file.getName() + " to " + to);
+            } else {
+                logger.log(Level.WARNING, "WARN Status " + response.getStatusCode() + ": file to " + to + ": " + response.getBody());
+                AuditLog.get().record(run, to, from, String.valueOf(response.getStatusCode()), started, null);
+                // the key may be outdated, look it up again next time
+                PUBLIC_KEYS.remove(to);
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    private Blob upload(FilePath file, long size, String from, String secret) throws IOException, InterruptedException {
+        byte[] key = new byte[NaCl.KEY_BYTES];
+        RANDOM.nextBytes(key);
+
+        // first pass, where the file is: content hash for reuse, tag for the upload
+        byte[] digest = file.act(new Digest(key));
+        String cacheKey = from + ':' + Hex.toHexString(digest, 0, DIGEST_BYTES);
+        Blob cached = BLOBS.get(cacheKey);
+        if (cached != null && cached.uploaded + BLOB_REUSE_MILLIS > System.currentTimeMillis()) {
+            logger.fine("Reusing Threema blob " + cached.id + " for " + file.getName());
+            return cached;
+        }
+        byte[] mac = Arrays.copyOfRange(digest, DIGEST_BYTES, digest.length);
+
+        // second pass: encrypt into the request body
+        ThreemaResponse response = agent != null
+                ? file.act(new Upload(from, secret, key, mac, size))
+                : upload(transport, file, from, secret, key, mac, size);
+        if (!response.isSuccess()) {
+            logger.log(Level.WARNING, "WARN Status " + response.getStatusCode() + ": blob upload of " + file.getName() + ": " + response.getBody());
+            return null;
+        }
+        Blob blob = new Blob(response.getBody(), key, size, System.currentTimeMillis());
+        BLOBS.put(cacheKey, blob);
+        BLOBS.values().removeIf(b -> b.uploaded + BLOB_REUSE_MILLIS < System.currentTimeMillis());
+        return blob;
+    }
+
+    private static ThreemaResponse upload(ApacheThreemaTransport transport, FilePath file, String from, String secret,
+                                          byte[] key, byte[] mac, long size) throws IOException, InterruptedException {
+        String boundary = "----threema" + Hex.toHexString(randomBytes(8));
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"blob\"; filename=\"blob.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long length = head.length + NaCl.MAC_BYTES + size + tail.length;
+
+        try (InputStream plain = file.read();
+             InputStream body = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                     new ByteArrayInputStream(head),
+                     new ByteArrayInputStream(mac),
+                     new EncryptingInputStream(plain, new NaCl.SecretBoxCipher(key, BLOB_NONCE)),
+                     new ByteArrayInputStream(tail))))) {
+            return transport.uploadBlob(from, secret, body, length, boundary);
+        }
+    }
+
+    byte[] lookupPublicKey(String from, String secret, String id) throws IOException, InterruptedException {
+        PublicKey known = PUBLIC_KEYS.get(id);
+        if (known != null && known.fetched + PUBLIC_KEY_MILLIS > System.currentTimeMillis()) {
+            return known.key;
+        }
+        ThreemaResponse response = call(new LookupPublicKey(from, secret, id));
+        if (!response.isSuccess()) {
+            logger.log(Level.WARNING, "WARN Status " + response.getStatusCode() + ": public key of " + id + ": " + response.getBody());
+            return null;
+        }
+        byte[] publicKey = Hex.decode(response.getBody());
+        PUBLIC_KEYS.put(id, new PublicKey(publicKey, System.currentTimeMillis()));
+        return publicKey;
+    }
+
+    private <T> T call(GatewayCall<T> call) throws IOException, InterruptedException {
+        return agent != null ? agent.call(call) : call.run(transport);
+    }
+
+    static byte[] fileMessage(Blob blob, String fileName) {
+        String mimeType = URLConnection.guessContentTypeFromName(fileName);
+        JSONObject json = new JSONObject();
+        json.put("b", blob.id);
+        json.put("k", Hex.toHexString(blob.key));
+        json.put("m", mimeType != null ? mimeType : "application/octet-stream");
+        json.put("n", fileName);
+        json.put("s", blob.size);
+        json.put("i", 0);
+        return message(FILE_MESSAGE_TYPE, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Prefixes the message type and appends random padding, ready to be boxed. */
+    static byte[] message(int type, byte[] body) {
+        // PKCS#7 style random padding hides the exact message length
+        int padding = 1 + RANDOM.nextInt(255);
+        byte[] content = new byte[1 + body.length + padding];
+        content[0] = (byte) type;
+        System.arraycopy(body, 0, content, 1, body.length);
+        Arrays.fill(content, 1 + body.length, content.length, (byte) padding);
+        return content;
+    }
+
+    static byte[] decodePrivateKey(String value) {
+        String hex = value.trim();
+        // the gateway tools export keys as "private:<hex>"
+        if (hex.startsWith("private:")) {
+            hex = hex.substring("private:".length());
+        }
+        return Hex.decode(hex);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class PublicKey {
+        final byte[] key;
+        final long fetched;
+
+        PublicKey(byte[] key, long fetched) {
+            this.key = key;
+            this.fetched = fetched;
+        }
+    }
+
+    static final class Blob {
+        final String id;
+        final byte[] key;
+        final long size;
+        final long uploaded;
+
+        Blob(String id, byte[] key, long size, long uploaded) {
+            this.id = id;
+            this.key = key;
+            this.size = size;
+            this.uploaded = uploaded;
+        }
+    }
+
+    /** Hashes and authenticates the file where it is, returns the SHA-256 digest followed by the tag. */
+    private static final class Digest extends MasterToSlaveFileCallable<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key;
+
+        Digest(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public byte[] invoke(File f, VirtualChannel channel) throws IOException {
+            MessageDigest sha256 = sha256();
+            NaCl.SecretBoxCipher macPass = new NaCl.SecretBoxCipher(key, BLOB_NONCE);
+            byte[] buffer = new byte[8192];
+            byte[] scratch = new byte[buffer.length];
+            try (InputStream in = Files.newInputStream(f.toPath())) {
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    sha256.update(buffer, 0, n);
+                    macPass.process(buffer, 0, n, scratch, 0);
+                }
+            }
+            byte[] result = Arrays.copyOf(sha256.digest(), DIGEST_BYTES + NaCl.MAC_BYTES);
+            macPass.doFinal(result, DIGEST_BYTES);
+            return result;
+        }
+    }
+
+    /** Uploads the file from the agent it is on. */
+    private static final class Upload extends MasterToSlaveFileCallable<ThreemaResponse> {
+        private static final long serialVersionUID = 1L;
+
+        private final String from;
+        // only ever sent over the (encrypted) remoting channel, never logged
+        private final String secret;
+        private final byte[] key;
+        private final byte[] mac;
+        private final long size;
+
+        Upload(String from, String secret, byte[] key, byte[] mac, long size) {
+            this.from = from;
+            this.secret = secret;
+            this.key = key;
+            this.mac = mac;
+            this.size = size;
+        }
+
+        @Override
+        public ThreemaResponse invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            return upload(ApacheThreemaTransport.direct(), new FilePath(f), from, secret, key, mac, size);
+        }
+    }
+
+    /** A gateway call made through the controller's transport, or on the agent when sent there. */
+    private abstract static class GatewayCall<T> extends MasterToSlaveCallable<T, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        abstract T run(ApacheThreemaTransport transport) throws IOException;
+
+        @Override
+        public T call() throws IOException {
+            return run(ApacheThreemaTransport.direct());
+        }
+    }
+
+    private static final class LookupPublicKey extends GatewayCall<ThreemaResponse> {
+        private static final long serialVersionUID = 1L;
+
+        private final String from;
+        private final String secret;
+        private final String id;
+
+        LookupPublicKey(String from, String secret, String id) {
+            this.from = from;
+            this.secret = secret;
+            this.id = id;
+        }
+
+        @Override
+        ThreemaResponse run(ApacheThreemaTransport transport) throws IOException {
+            return transport.lookupPublicKey(from, secret, id);
+        }
+    }
+
+    private static final class SendE2E extends GatewayCall<ThreemaResponse> {
+        private static final long serialVersionUID = 1L;
+
+        private final String from;
+        private final String to;
+        private final String nonce;
+        private final String box;
+        private final String secret;
+
+        SendE2E(String from, String to, String nonce, String box, String secret) {
+            this.from = from;
+            this.to = to;
+            this.nonce = nonce;
+            this.box = box;
+            this.secret = secret;
+        }
+
+        @Override
+        ThreemaResponse run(ApacheThreemaTransport transport) throws IOException {
+            return transport.sendE2E(from, to, nonce, box, secret);
+        }
+    }
+
+    /** Encrypts the wrapped stream chunk by chunk as it is read. */
+    private static final class EncryptingInputStream extends FilterInputStream {
+        private final NaCl.SecretBoxCipher cipher;
+        private final byte[] one = new byte[1];
+
+        EncryptingInputStream(InputStream in, NaCl.SecretBoxCipher cipher) {
+            super(in);
+            this.cipher = cipher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                cipher.process(b, off, n, b, off);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
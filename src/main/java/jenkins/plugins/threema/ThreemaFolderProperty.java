@@ -0,0 +1,86 @@
+package jenkins.plugins.threema;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderProperty;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderPropertyDescriptor;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.util.Collections;
+
+/**
+ * Threema settings for all jobs in a folder and its subfolders. Jobs and nested folders override
+ * whatever they set themselves, see {@link ThreemaSettings}.
+ */
+public class ThreemaFolderProperty extends AbstractFolderProperty<AbstractFolder<?>> {
+
+    private String credentialsId;
+    private String additionalCredentialsIds;
+    private String recipient;
+
+    @DataBoundConstructor
+    public ThreemaFolderProperty() {
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = Util.fixEmptyAndTrim(credentialsId);
+    }
+
+    public String getAdditionalCredentialsIds() {
+        return additionalCredentialsIds;
+    }
+
+    @DataBoundSetter
+    public void setAdditionalCredentialsIds(String additionalCredentialsIds) {
+        this.additionalCredentialsIds = Util.fixEmptyAndTrim(additionalCredentialsIds);
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    @DataBoundSetter
+    public void setRecipient(String recipient) {
+        this.recipient = Util.fixEmptyAndTrim(recipient);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractFolderPropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Threema Notifications";
+        }
+
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item,
+                                                     @QueryParameter String credentialsId) {
+            StandardListBoxModel result = new StandardListBoxModel();
+            if (item == null || !item.hasPermission(Item.CONFIGURE)) {
+                return result.includeCurrentValue(credentialsId);
+            }
+            return result
+                    .includeEmptyValue()
+                    .includeMatchingAs(ACL.SYSTEM,
+                            item,
+                            StandardUsernamePasswordCredentials.class,
+                            Collections.emptyList(),
+                            CredentialsMatchers.always())
+                    .includeCurrentValue(credentialsId);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package jenkins.plugins.threema;
 
 import hudson.Extension;
+import hudson.matrix.MatrixRun;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
@@ -23,7 +24,16 @@ public class ThreemaListener extends RunListener<AbstractBuild> {
 
   @Override
   public void onCompleted(AbstractBuild r, TaskListener listener) {
-    getNotifier(r.getProject(), listener).completed(r);
+    ThreemaNotifier notifier = (ThreemaNotifier) r.getProject().getPublishersList().get(ThreemaNotifier.class);
+    if (notifier != null && notifier.getAggregateMatrix() && r instanceof MatrixRun) {
+      // reported once with the parent build
+      MatrixAggregator.record((MatrixRun) r);
+    } else {
+      getNotifier(r.getProject(), listener).completed(r);
+    }
+    if (notifier != null) {
+      DurationAnomalyDetector.get().completed(r);
+    }
     super.onCompleted(r, listener);
   }
 
@@ -31,6 +41,10 @@ public class ThreemaListener extends RunListener<AbstractBuild> {
   public void onStarted(AbstractBuild r, TaskListener listener) {
     // getNotifier(r.getProject()).started(r);
     // super.onStarted(r, listener);
+    ThreemaNotifier notifier = (ThreemaNotifier) r.getProject().getPublishersList().get(ThreemaNotifier.class);
+    if (notifier != null) {
+      DurationAnomalyDetector.get().started(r, notifier);
+    }
   }
 
   @Override
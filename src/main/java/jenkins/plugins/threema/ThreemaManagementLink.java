@@ -0,0 +1,84 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * "Manage Jenkins" page showing the runtime state of the notifier: dispatch queue, gateway ID health,
+ * quarantined recipients, and the audit log of send attempts.
+ */
+@Extension
+public class ThreemaManagementLink extends ManagementLink {
+
+    private static final int AUDIT_LIMIT = 200;
+
+    @Override
+    public String getIconFileName() {
+        return "network.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "threema";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Threema Notifications";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Notification queue, gateway ID health, credit usage, quarantined recipients and send history.";
+    }
+
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    public ThreemaDispatcher getDispatcher() {
+        return ThreemaDispatcher.get();
+    }
+
+    public Map<String, GatewayPool.Health> getGatewayHealth() {
+        return GatewayPool.getHealth();
+    }
+
+    public CreditLedger getCredits() {
+        return CreditLedger.get();
+    }
+
+    public Collection<RecipientQuarantine.Entry> getQuarantine() {
+        return RecipientQuarantine.getEntries();
+    }
+
+    /** Latest send attempts for the job and/or recipient, nothing if neither is given. */
+    public List<AuditLog.Entry> queryAudit(String job, String recipient) {
+        job = Util.fixEmptyAndTrim(job);
+        recipient = Util.fixEmptyAndTrim(recipient);
+        if (job == null && recipient == null) {
+            return Collections.emptyList();
+        }
+        return AuditLog.get().query(job, recipient, AUDIT_LIMIT);
+    }
+
+    @POST
+    public HttpResponse doRelease(@QueryParameter String from, @QueryParameter String recipient) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        RecipientQuarantine.release(from, recipient);
+        return HttpResponses.redirectToDot();
+    }
+}
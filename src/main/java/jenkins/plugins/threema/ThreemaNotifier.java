@@ -1,12 +1,16 @@
 package jenkins.plugins.threema;
 
+import antlr.ANTLRException;
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.matrix.MatrixRun;
 import hudson.model.*;
+import hudson.scheduler.CronTabList;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -35,6 +39,7 @@ public class ThreemaNotifier extends Notifier {
 
     private String recipient;
     private String credentialsId;
+    private String additionalCredentialsIds;
     private boolean startNotification;
     private boolean notifySuccess;
     private boolean notifyAborted;
@@ -43,6 +48,13 @@ public class ThreemaNotifier extends Notifier {
     private boolean notifyFailure;
     private boolean notifyBackToNormal;
     private boolean notifyRepeatedFailure;
+    private int logTailLines;
+    private int queueAlertMinutes;
+    private boolean includeTestSummary;
+    private int maxFailedTests;
+    private boolean includeCulprits;
+    private boolean notifySlowBuild;
+    private boolean aggregateMatrix;
 
     @Override
     public DescriptorImpl getDescriptor() {
@@ -57,6 +69,10 @@ public class ThreemaNotifier extends Notifier {
         return credentialsId;
     }
 
+    public String getAdditionalCredentialsIds() {
+        return additionalCredentialsIds;
+    }
+
     public boolean getStartNotification() {
         return startNotification;
     }
@@ -89,11 +105,79 @@ public class ThreemaNotifier extends Notifier {
         return notifyRepeatedFailure;
     }
 
+    public int getLogTailLines() {
+        return logTailLines;
+    }
+
     @DataBoundSetter
     public void setCredentialsId(String credentialsId) {
         this.credentialsId = credentialsId;
     }
 
+    @DataBoundSetter
+    public void setAdditionalCredentialsIds(String additionalCredentialsIds) {
+        this.additionalCredentialsIds = Util.fixEmptyAndTrim(additionalCredentialsIds);
+    }
+
+    @DataBoundSetter
+    public void setLogTailLines(int logTailLines) {
+        this.logTailLines = Math.max(0, logTailLines);
+    }
+
+    public int getQueueAlertMinutes() {
+        return queueAlertMinutes;
+    }
+
+    @DataBoundSetter
+    public void setQueueAlertMinutes(int queueAlertMinutes) {
+        this.queueAlertMinutes = Math.max(0, queueAlertMinutes);
+    }
+
+    public boolean getIncludeTestSummary() {
+        return includeTestSummary;
+    }
+
+    @DataBoundSetter
+    public void setIncludeTestSummary(boolean includeTestSummary) {
+        this.includeTestSummary = includeTestSummary;
+    }
+
+    public int getMaxFailedTests() {
+        return maxFailedTests;
+    }
+
+    @DataBoundSetter
+    public void setMaxFailedTests(int maxFailedTests) {
+        this.maxFailedTests = Math.max(0, maxFailedTests);
+    }
+
+    public boolean getIncludeCulprits() {
+        return includeCulprits;
+    }
+
+    @DataBoundSetter
+    public void setIncludeCulprits(boolean includeCulprits) {
+        this.includeCulprits = includeCulprits;
+    }
+
+    public boolean getAggregateMatrix() {
+        return aggregateMatrix;
+    }
+
+    @DataBoundSetter
+    public void setAggregateMatrix(boolean aggregateMatrix) {
+        this.aggregateMatrix = aggregateMatrix;
+    }
+
+    public boolean getNotifySlowBuild() {
+        return notifySlowBuild;
+    }
+
+    @DataBoundSetter
+    public void setNotifySlowBuild(boolean notifySlowBuild) {
+        this.notifySlowBuild = notifySlowBuild;
+    }
+
     @DataBoundSetter
     public void setIcon(@CheckForNull String recipient) {
         this.recipient = fixNull(recipient);
@@ -180,7 +264,20 @@ public class ThreemaNotifier extends Notifier {
 //        recipient = env.expand(recipient);
 //        from = env.expand(from);
 
-        return new StandardThreemaService(credentialsId, recipient);
+        return newThreemaService(r == null ? null : r.getProject());
+    }
+
+    /** A service for the job, with credentials and recipients inherited from folders and global defaults. */
+    public ThreemaService newThreemaService(AbstractProject<?, ?> project) {
+        ThreemaSettings settings = ThreemaSettings.resolve(project, this);
+        StandardThreemaService service = new StandardThreemaService(settings.getCredentialsId(), Util.fixNull(settings.getRecipient()));
+        service.setAdditionalCredentialsIds(settings.getAdditionalCredentialsIds());
+        service.setLogTailLines(logTailLines);
+        service.setIncludeTestSummary(includeTestSummary);
+        service.setMaxFailedTests(maxFailedTests);
+        service.setIncludeCulprits(includeCulprits);
+        service.setNotifySlowBuild(notifySlowBuild);
+        return service;
     }
 
     @Override
@@ -191,7 +288,7 @@ public class ThreemaNotifier extends Notifier {
 
     @Override
     public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
-        if (startNotification) {
+        if (startNotification && !(aggregateMatrix && build instanceof MatrixRun)) {
             Map<Descriptor<Publisher>, Publisher> map = build.getProject().getPublishersList().toMap();
             for (Publisher publisher : map.values()) {
                 if (publisher instanceof ThreemaNotifier) {
@@ -209,6 +306,15 @@ public class ThreemaNotifier extends Notifier {
 
         private String credentialsId;
         private String recipient;
+        private boolean dispatchOnVirtualThreads;
+        private String digestSchedule;
+        private String digestRecipient;
+        private int shutdownDrainSeconds = 10;
+        private int lowCreditThreshold;
+        private String callbackPrivateKeyCredentialsId;
+        private String callbackAllowedSenders;
+        private String failureCausePatterns;
+        private transient volatile FailureClassifier failureClassifier;
 
         public DescriptorImpl() {
             load();
@@ -235,6 +341,102 @@ public class ThreemaNotifier extends Notifier {
             return recipient;
         }
 
+        public boolean getDispatchOnVirtualThreads() {
+            return dispatchOnVirtualThreads;
+        }
+
+        @DataBoundSetter
+        public void setDispatchOnVirtualThreads(boolean dispatchOnVirtualThreads) {
+            this.dispatchOnVirtualThreads = dispatchOnVirtualThreads;
+        }
+
+        public String getDigestSchedule() {
+            return digestSchedule;
+        }
+
+        @DataBoundSetter
+        public void setDigestSchedule(String digestSchedule) {
+            this.digestSchedule = Util.fixEmptyAndTrim(digestSchedule);
+        }
+
+        public String getDigestRecipient() {
+            return digestRecipient;
+        }
+
+        @DataBoundSetter
+        public void setDigestRecipient(String digestRecipient) {
+            this.digestRecipient = Util.fixEmptyAndTrim(digestRecipient);
+        }
+
+        public int getShutdownDrainSeconds() {
+            return shutdownDrainSeconds;
+        }
+
+        @DataBoundSetter
+        public void setShutdownDrainSeconds(int shutdownDrainSeconds) {
+            this.shutdownDrainSeconds = Math.max(0, shutdownDrainSeconds);
+        }
+
+        public int getLowCreditThreshold() {
+            return lowCreditThreshold;
+        }
+
+        @DataBoundSetter
+        public void setLowCreditThreshold(int lowCreditThreshold) {
+            this.lowCreditThreshold = Math.max(0, lowCreditThreshold);
+        }
+
+        public String getCallbackPrivateKeyCredentialsId() {
+            return callbackPrivateKeyCredentialsId;
+        }
+
+        @DataBoundSetter
+        public void setCallbackPrivateKeyCredentialsId(String callbackPrivateKeyCredentialsId) {
+            this.callbackPrivateKeyCredentialsId = Util.fixEmptyAndTrim(callbackPrivateKeyCredentialsId);
+        }
+
+        public String getCallbackAllowedSenders() {
+            return callbackAllowedSenders;
+        }
+
+        @DataBoundSetter
+        public void setCallbackAllowedSenders(String callbackAllowedSenders) {
+            this.callbackAllowedSenders = Util.fixEmptyAndTrim(callbackAllowedSenders);
+        }
+
+        public String getFailureCausePatterns() {
+            return failureCausePatterns;
+        }
+
+        @DataBoundSetter
+        public void setFailureCausePatterns(String failureCausePatterns) {
+            this.failureCausePatterns = Util.fixEmptyAndTrim(failureCausePatterns);
+            this.failureClassifier = null;
+        }
+
+        /** Compiled once from {@link #getFailureCausePatterns()}, or the built-in patterns if none are set. */
+        FailureClassifier getFailureClassifier() {
+            FailureClassifier classifier = failureClassifier;
+            if (classifier == null) {
+                classifier = FailureClassifier.compile(
+                        failureCausePatterns != null ? failureCausePatterns : FailureClassifier.DEFAULT_PATTERNS);
+                failureClassifier = classifier;
+            }
+            return classifier;
+        }
+
+        public FormValidation doCheckDigestSchedule(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                CronTabList.create(value);
+                return FormValidation.ok();
+            } catch (ANTLRException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             return true;
         }
@@ -0,0 +1,36 @@
+package jenkins.plugins.threema;
+
+import java.io.Serializable;
+
+/**
+ * Status code and body returned by the gateway. On success the body carries the message ID.
+ */
+public class ThreemaResponse implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String body;
+
+    public ThreemaResponse(int statusCode, String body) {
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public boolean isSuccess() {
+        return statusCode == 200;
+    }
+
+    @Override
+    public String toString() {
+        return "Status " + statusCode + ": " + body;
+    }
+}
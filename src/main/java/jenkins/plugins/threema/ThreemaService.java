@@ -2,8 +2,17 @@ package jenkins.plugins.threema;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.model.Run;
+import java.util.concurrent.CompletableFuture;
 
 public interface ThreemaService {
   boolean publish(@NonNull Run<?, ?> run);
   boolean publish(@NonNull Run<?, ?> run, String message);
+
+  default CompletableFuture<Boolean> publishAsync(@NonNull Run<?, ?> run, String message) {
+    return publishAsync(run, message, ThreemaDispatcher.Priority.of(run));
+  }
+
+  default CompletableFuture<Boolean> publishAsync(@NonNull Run<?, ?> run, String message, ThreemaDispatcher.Priority priority) {
+    return ThreemaDispatcher.get().submit(priority, run.getExternalizableId(), () -> publish(run, message));
+  }
 }
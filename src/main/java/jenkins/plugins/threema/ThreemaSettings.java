@@ -0,0 +1,143 @@
+package jenkins.plugins.threema;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Credentials and recipients as they apply to a job: its own {@link ThreemaNotifier} settings, else those
+ * of the nearest enclosing folder with a {@link ThreemaFolderProperty} that sets them, else the global
+ * defaults. The settings of each folder are resolved once and cached until that folder or one of its
+ * ancestors is saved, moved or deleted, so build events never walk the folder hierarchy.
+ */
+public final class ThreemaSettings {
+
+    private static final Map<String, ThreemaSettings> FOLDERS = new ConcurrentHashMap<>();
+    // bumped and checked under the FOLDERS lock, so that no entry resolved before an invalidation is stored after it
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private final String credentialsId;
+    private final String additionalCredentialsIds;
+    private final String recipient;
+
+    ThreemaSettings(String credentialsId, String additionalCredentialsIds, String recipient) {
+        this.credentialsId = Util.fixEmptyAndTrim(credentialsId);
+        this.additionalCredentialsIds = Util.fixEmptyAndTrim(additionalCredentialsIds);
+        this.recipient = Util.fixEmptyAndTrim(recipient);
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getAdditionalCredentialsIds() {
+        return additionalCredentialsIds;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /** These settings, with anything left unset taken from {@code inherited}. */
+    ThreemaSettings over(ThreemaSettings inherited) {
+        return new ThreemaSettings(
+                credentialsId != null ? credentialsId : inherited.credentialsId,
+                additionalCredentialsIds != null ? additionalCredentialsIds : inherited.additionalCredentialsIds,
+                recipient != null ? recipient : inherited.recipient);
+    }
+
+    /** Settings for a job with the given notifier, {@code null} job means top level. */
+    static ThreemaSettings resolve(Item job, ThreemaNotifier notifier) {
+        ThreemaSettings own = new ThreemaSettings(
+                notifier.getCredentialsId(), notifier.getAdditionalCredentialsIds(), notifier.getRecipient());
+        return own.over(job == null ? global() : of(job.getParent()));
+    }
+
+    static ThreemaSettings of(ItemGroup<?> group) {
+        if (!(group instanceof AbstractFolder)) {
+            return global();
+        }
+        AbstractFolder<?> folder = (AbstractFolder<?>) group;
+        ThreemaSettings cached = FOLDERS.get(folder.getFullName());
+        if (cached != null) {
+            return cached;
+        }
+        int built = generation.get();
+        ThreemaSettings inherited = of(folder.getParent());
+        ThreemaFolderProperty property = folder.getProperties().get(ThreemaFolderProperty.class);
+        ThreemaSettings resolved = property == null ? inherited : new ThreemaSettings(
+                property.getCredentialsId(), property.getAdditionalCredentialsIds(), property.getRecipient()).over(inherited);
+        // a folder saved while resolving is picked up by the next lookup
+        synchronized (FOLDERS) {
+            if (generation.get() == built) {
+                FOLDERS.put(folder.getFullName(), resolved);
+            }
+        }
+        return resolved;
+    }
+
+    private static ThreemaSettings global() {
+        ThreemaNotifier.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(ThreemaNotifier.DescriptorImpl.class);
+        return descriptor == null
+                ? new ThreemaSettings(null, null, null)
+                : new ThreemaSettings(descriptor.getCredentialsId(), null, descriptor.getRecipient());
+    }
+
+    /** Drops the cached settings of the folder and everything below it. */
+    static void invalidate(String folderFullName) {
+        String prefix = folderFullName + '/';
+        synchronized (FOLDERS) {
+            generation.incrementAndGet();
+            FOLDERS.keySet().removeIf(name -> name.equals(folderFullName) || name.startsWith(prefix));
+        }
+    }
+
+    static void invalidateAll() {
+        synchronized (FOLDERS) {
+            generation.incrementAndGet();
+            FOLDERS.clear();
+        }
+    }
+
+    @Extension
+    public static class Invalidator extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractFolder) {
+                invalidate(((AbstractFolder<?>) o).getFullName());
+            } else if (o instanceof ThreemaNotifier.DescriptorImpl) {
+                // global defaults are folded into every cached entry
+                invalidateAll();
+            }
+        }
+    }
+
+    @Extension
+    public static class MoveListener extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof AbstractFolder) {
+                invalidate(oldFullName);
+                invalidate(newFullName);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof AbstractFolder) {
+                invalidate(item.getFullName());
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package jenkins.plugins.threema;
+
+import java.io.IOException;
+
+/**
+ * Moves a single text message to the Threema Gateway. Implementations own their connection handling,
+ * {@link StandardThreemaService} only decides what is sent to whom.
+ * <p>
+ * Sends block the calling thread. They are kept off build and listener threads by
+ * {@link ThreemaDispatcher}, which already hands out a future per notification.
+ */
+public interface ThreemaTransport {
+
+    ThreemaResponse send(String from, String to, String text, String secret) throws IOException;
+}
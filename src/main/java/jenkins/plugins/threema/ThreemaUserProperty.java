@@ -0,0 +1,262 @@
+package jenkins.plugins.threema;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.UserProperty;
+import hudson.model.UserPropertyDescriptor;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A user's Threema ID and the job name globs (e.g. {@code team-a/**&#47;release-*}) they want to be
+ * notified about. All subscriptions are served from one shared {@link SubscriptionIndex} that is rebuilt
+ * only when a user configuration changes.
+ */
+public class ThreemaUserProperty extends UserProperty {
+
+    private static volatile SubscriptionIndex index;
+    // Threema settings of each user as of the last rebuild, so that unrelated user saves (e.g. on login) keep the index
+    private static volatile Map<String, String> indexed = Collections.emptyMap();
+    // user ID by Threema ID, rebuilt with the index
+    private static volatile Map<String, String> owners = Collections.emptyMap();
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    /** How long the permissions of a subscriber are taken from the security realm's last answer. */
+    static final long AUTHENTICATION_MILLIS = Long.getLong(ThreemaUserProperty.class.getName() + ".authenticationMillis", TimeUnit.MINUTES.toMillis(5));
+    // impersonating can mean a directory round trip (LDAP, Active Directory), not something to do per subscriber per build
+    private static final Map<String, CachedAuthentication> authentications = new ConcurrentHashMap<>();
+
+    private final String threemaId;
+    private final String jobGlobs;
+
+    @DataBoundConstructor
+    public ThreemaUserProperty(String threemaId, String jobGlobs) {
+        this.threemaId = Util.fixEmptyAndTrim(threemaId);
+        this.jobGlobs = Util.fixEmptyAndTrim(jobGlobs);
+    }
+
+    public String getThreemaId() {
+        return threemaId;
+    }
+
+    public String getJobGlobs() {
+        return jobGlobs;
+    }
+
+    /**
+     * Threema IDs of the users subscribed to the job who may also read it. Users that cannot be
+     * impersonated any more (e.g. removed from the security realm) are skipped.
+     */
+    static Set<String> subscribersOf(Job<?, ?> job) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String userId : getIndex().match(job.getFullName())) {
+            User user = User.getById(userId, false);
+            ThreemaUserProperty property = user == null ? null : user.getProperty(ThreemaUserProperty.class);
+            if (property != null && property.threemaId != null && canRead(user, job)) {
+                result.add(property.threemaId);
+            }
+        }
+        return result;
+    }
+
+    private static boolean canRead(User user, Job<?, ?> job) {
+        Authentication auth = authenticationOf(user);
+        return auth != null && job.hasPermission(auth, Item.READ);
+    }
+
+    /**
+     * {@code user} as seen by the security realm at most {@link #AUTHENTICATION_MILLIS} ago, or {@code null}
+     * if it does not know the user any more.
+     */
+    static Authentication authenticationOf(User user) {
+        long now = System.currentTimeMillis();
+        CachedAuthentication cached = authentications.get(user.getId());
+        if (cached == null || cached.expires < now) {
+            Authentication auth;
+            try {
+                auth = user.impersonate();
+            } catch (UsernameNotFoundException e) {
+                auth = null;
+            }
+            cached = new CachedAuthentication(auth, now + AUTHENTICATION_MILLIS);
+            authentications.put(user.getId(), cached);
+        }
+        return cached.authentication;
+    }
+
+    /** The first job matched by this property's globs that {@code user} may not read, or {@code null}. */
+    String findUnreadableJob(User user) {
+        List<String> globs = globs();
+        if (globs.isEmpty()) {
+            return null;
+        }
+        SubscriptionIndex own = new SubscriptionIndex();
+        for (String glob : globs) {
+            own.add(glob, user.getId());
+        }
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            for (Job<?, ?> job : Jenkins.get().getAllItems(Job.class)) {
+                if (!own.match(job.getFullName()).isEmpty() && !canRead(user, job)) {
+                    return job.getFullName();
+                }
+            }
+        }
+        return null;
+    }
+
+    /** The only user who entered {@code threemaId} as their own, or {@code null}. */
+    static User findUser(String threemaId) {
+        getIndex();
+        String userId = owners.get(threemaId.toUpperCase(Locale.ROOT));
+        return userId == null ? null : User.getById(userId, false);
+    }
+
+    private static SubscriptionIndex getIndex() {
+        SubscriptionIndex current = index;
+        return current != null ? current : rebuild();
+    }
+
+    private static synchronized SubscriptionIndex rebuild() {
+        SubscriptionIndex current = index;
+        if (current != null) {
+            return current;
+        }
+        int built = generation.get();
+        current = new SubscriptionIndex();
+        Map<String, String> signatures = new HashMap<>();
+        Map<String, String> threemaIds = new HashMap<>();
+        Set<String> claimedTwice = new HashSet<>();
+        for (User user : User.getAll()) {
+            ThreemaUserProperty property = user.getProperty(ThreemaUserProperty.class);
+            if (property == null) {
+                continue;
+            }
+            signatures.put(user.getId(), property.signature());
+            if (property.threemaId != null && threemaIds.put(property.threemaId.toUpperCase(Locale.ROOT), user.getId()) != null) {
+                claimedTwice.add(property.threemaId.toUpperCase(Locale.ROOT));
+            }
+            if (property.threemaId == null || property.jobGlobs == null) {
+                continue;
+            }
+            for (String glob : property.globs()) {
+                current.add(glob, user.getId());
+            }
+        }
+        // nobody can tell which of the users owns the ID
+        threemaIds.keySet().removeAll(claimedTwice);
+        // a user saved while building will be picked up by the next rebuild
+        if (generation.get() == built) {
+            indexed = signatures;
+            owners = threemaIds;
+            index = current;
+        }
+        return current;
+    }
+
+    private String signature() {
+        return threemaId + "\n" + jobGlobs;
+    }
+
+    private List<String> globs() {
+        List<String> globs = new ArrayList<>();
+        if (jobGlobs != null) {
+            for (String glob : jobGlobs.split("\\s*[\\n,]\\s*")) {
+                if (!glob.isEmpty()) {
+                    globs.add(glob);
+                }
+            }
+        }
+        return globs;
+    }
+
+    /** Rebuilds the index on next use if the user's Threema settings differ from the indexed ones. */
+    static void changed(User user) {
+        authentications.remove(user.getId());
+        Map<String, String> signatures = indexed;
+        ThreemaUserProperty property = user.getProperty(ThreemaUserProperty.class);
+        String signature = property == null ? null : property.signature();
+        if (index == null || !Objects.equals(signature, signatures.get(user.getId()))) {
+            invalidate();
+        }
+    }
+
+    static void invalidate() {
+        generation.incrementAndGet();
+        index = null;
+        // drop users that left the index with it
+        authentications.clear();
+    }
+
+    private static final class CachedAuthentication {
+        final Authentication authentication;
+        final long expires;
+
+        CachedAuthentication(Authentication authentication, long expires) {
+            this.authentication = authentication;
+            this.expires = expires;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends UserPropertyDescriptor {
+
+        @Override
+        public UserProperty newInstance(User user) {
+            return null;
+        }
+
+        @Override
+        public UserProperty newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+            ThreemaUserProperty property = (ThreemaUserProperty) super.newInstance(req, formData);
+            User user = req == null ? null : req.findAncestorObject(User.class);
+            if (user != null && property != null) {
+                String unreadable = property.findUnreadableJob(user);
+                if (unreadable != null) {
+                    throw new FormException("You cannot subscribe to " + unreadable + ", you do not have read access to it", "jobGlobs");
+                }
+            }
+            return property;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Threema Notifications";
+        }
+    }
+
+    @Extension
+    public static class IndexInvalidator extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, hudson.XmlFile file) {
+            if (o instanceof User) {
+                changed((User) o);
+            }
+        }
+    }
+}
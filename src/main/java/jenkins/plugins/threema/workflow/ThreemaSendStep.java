@@ -1,20 +1,32 @@
 package jenkins.plugins.threema.workflow;
 
 import com.google.common.collect.ImmutableSet;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.AbortException;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Util;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.plugins.threema.ApacheThreemaTransport;
+import jenkins.plugins.threema.DeliveryReceipts;
+import jenkins.plugins.threema.RemoteThreemaTransport;
 import jenkins.plugins.threema.StandardThreemaService;
-import jenkins.plugins.threema.ThreemaService;
+import jenkins.plugins.threema.ThreemaDispatcher;
+import jenkins.plugins.threema.ThreemaFileSender;
+import jenkins.plugins.threema.ThreemaTransport;
 import org.jenkinsci.plugins.workflow.steps.*;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Workflow step to send a Thrreema recipient notification.
@@ -23,12 +35,20 @@ public class ThreemaSendStep extends Step {
 
     private String credentialsId;
 
+    private String additionalCredentialsIds;
+
     private String recipient;
 
     private String message;
 
     private boolean failOnError;
 
+    private boolean sendFromAgent;
+
+    private String file;
+
+    private String privateKeyCredentialsId;
+
     public String getCredentialsId() {
         return credentialsId;
     }
@@ -45,6 +65,15 @@ public class ThreemaSendStep extends Step {
         this.credentialsId = Util.fixEmpty(credentialsId);
     }
 
+    public String getAdditionalCredentialsIds() {
+        return additionalCredentialsIds;
+    }
+
+    @DataBoundSetter
+    public void setAdditionalCredentialsIds(String additionalCredentialsIds) {
+        this.additionalCredentialsIds = Util.fixEmptyAndTrim(additionalCredentialsIds);
+    }
+
     public String getRecipient() {
         return recipient;
     }
@@ -63,6 +92,33 @@ public class ThreemaSendStep extends Step {
         this.failOnError = failOnError;
     }
 
+    public boolean isSendFromAgent() {
+        return sendFromAgent;
+    }
+
+    @DataBoundSetter
+    public void setSendFromAgent(boolean sendFromAgent) {
+        this.sendFromAgent = sendFromAgent;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    @DataBoundSetter
+    public void setFile(String file) {
+        this.file = Util.fixEmptyAndTrim(file);
+    }
+
+    public String getPrivateKeyCredentialsId() {
+        return privateKeyCredentialsId;
+    }
+
+    @DataBoundSetter
+    public void setPrivateKeyCredentialsId(String privateKeyCredentialsId) {
+        this.privateKeyCredentialsId = Util.fixEmpty(privateKeyCredentialsId);
+    }
+
     public String getMessage() {
         return message;
     }
@@ -100,8 +156,7 @@ public class ThreemaSendStep extends Step {
         }
     }
 
-    public static class ThreemaSendStepExecution
-            extends SynchronousNonBlockingStepExecution<Void> {
+    public static class ThreemaSendStepExecution extends StepExecution {
 
         private static final long serialVersionUID = 1L;
 
@@ -109,6 +164,10 @@ public class ThreemaSendStep extends Step {
 
         transient TaskListener listener;
 
+        private transient volatile CompletableFuture<Boolean> task;
+
+        private transient volatile boolean stopped;
+
         @SuppressFBWarnings("SE_TRANSIENT_FIELD_NOT_RESTORED")
 
         protected ThreemaSendStepExecution(StepContext context, ThreemaSendStep threemaSendStep) {
@@ -122,22 +181,95 @@ public class ThreemaSendStep extends Step {
         }
 
         @Override
-        protected Void run() throws Exception {
-            ThreemaService threemaService = getThreemaService(step.credentialsId, step.recipient);
+        public boolean start() throws Exception {
+            VirtualChannel agent = getAgent();
+            StandardThreemaService threemaService = getThreemaService(step.credentialsId, step.recipient,
+                    agent != null ? new RemoteThreemaTransport(agent) : ApacheThreemaTransport.get());
+            threemaService.setAdditionalCredentialsIds(step.additionalCredentialsIds);
+
+            Run<?, ?> run = this.getContext().get(Run.class);
+            FilePath attachment = getAttachment();
+            task = threemaService.publishStepAsync(run, step.message,
+                    () -> attachment == null || new ThreemaFileSender(ApacheThreemaTransport.get(), agent).send(
+                            run, attachment, step.credentialsId, step.privateKeyCredentialsId, step.recipient));
+            task.whenComplete((publishSuccess, error) -> {
+                if (stopped) {
+                    return;
+                }
+                if (ThreemaDispatcher.isDeferredByShutdown(error)) {
+                    // Jenkins is going down, onResume fails the step once it is back
+                    listener.getLogger().println("threemaSend: Jenkins is shutting down, the message was not sent");
+                } else if (error != null) {
+                    getContext().onFailure(error);
+                } else if (!publishSuccess && step.failOnError) {
+                    getContext().onFailure(new AbortException("Threema notification failed. See Jenkins logs for details."));
+                } else {
+                    if (!publishSuccess) {
+                        listener.error("Threema notification failed. See Jenkins logs for details.");
+                    }
+                    getContext().onSuccess(getStatuses(run, threemaService));
+                }
+            });
+            return false;
+        }
 
-            boolean publishSuccess = threemaService.publish(this.getContext().get(Run.class), step.message);
+        @Override
+        public void stop(@NonNull Throwable cause) throws Exception {
+            stopped = true;
+            CompletableFuture<Boolean> running = task;
+            if (running != null) {
+                ThreemaDispatcher.get().cancel(running);
+            }
+            getContext().onFailure(cause);
+        }
 
-            if (!publishSuccess && step.failOnError) {
-                throw new AbortException("Threema notification failed. See Jenkins logs for details.");
-            } else if (!publishSuccess) {
-                listener.error("Threema notification failed. See Jenkins logs for details.");
+        @Override
+        public void onResume() {
+            getContext().onFailure(new AbortException("threemaSend did not finish before Jenkins restarted, the message may not have been sent"));
+        }
+
+        /** Delivery status by recipient, {@code "failed"} for recipients no message ID came back for. */
+        private HashMap<String, String> getStatuses(Run<?, ?> run, StandardThreemaService threemaService) {
+            HashMap<String, String> statuses = new LinkedHashMap<>();
+            Map<Long, DeliveryReceipts.Status> recorded = DeliveryReceipts.getStatuses(run);
+            for (String to : step.recipient.split("[,;]+")) {
+                Long messageId = threemaService.getSentMessageIds().get(to);
+                DeliveryReceipts.Status status = messageId == null ? null : recorded.get(messageId);
+                statuses.put(to, status == null ? "failed" : status.getDisplayName());
+            }
+            return statuses;
+        }
+
+        private FilePath getAttachment() throws IOException, InterruptedException {
+            if (step.file == null) {
+                return null;
+            }
+            if (step.privateKeyCredentialsId == null) {
+                throw new AbortException("threemaSend: sending a file requires privateKeyCredentialsId");
+            }
+            FilePath workspace = getContext().get(FilePath.class);
+            if (workspace == null) {
+                throw new AbortException("threemaSend: sending a file requires a workspace, use it inside a node block");
+            }
+            return workspace.child(step.file);
+        }
+
+        /** The channel to send from with {@code sendFromAgent}, {@code null} to send from the controller. */
+        private VirtualChannel getAgent() throws IOException, InterruptedException {
+            if (!step.sendFromAgent) {
+                return null;
+            }
+            FilePath workspace = getContext().get(FilePath.class);
+            if (workspace == null || workspace.getChannel() == null) {
+                listener.getLogger().println("threemaSend: no agent workspace available, sending from the controller");
+                return null;
             }
-            return null;
+            return workspace.getChannel();
         }
 
         // streamline unit testing
-        ThreemaService getThreemaService(String credentialsId, String recipient) {
-            return new StandardThreemaService(credentialsId, recipient);
+        StandardThreemaService getThreemaService(String credentialsId, String recipient, ThreemaTransport transport) {
+            return new StandardThreemaService(credentialsId, recipient, transport);
         }
     }
 }
@@ -0,0 +1,122 @@
+package jenkins.plugins.threema;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the platform thread and virtual thread modes of {@link ThreemaDispatcher} against a local stub
+ * gateway: a burst of sends is queued at once and sent through {@link ApacheThreemaTransport}.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=jenkins.plugins.threema.DispatchBenchmark -Dexec.args="[sends] [gatewayLatencyMillis]"
+ * </pre>
+ * Virtual threads need JDK 21; on older JVMs the second run falls back to platform threads and says so.
+ * Concurrency in either mode is also bounded by the connection pool of the transport, see
+ * {@code -Djenkins.plugins.threema.ApacheThreemaTransport.maxConnections}.
+ */
+public final class DispatchBenchmark {
+
+    private DispatchBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sends = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long gatewayLatency = args.length > 1 ? Long.parseLong(args[1]) : 50;
+
+        try (StubGateway gateway = new StubGateway(gatewayLatency)) {
+            // warms up the JIT and the stub, the result is not reported
+            run(gateway, false, Math.min(sends, 500));
+            System.out.printf("%d sends, gateway latency %d ms%n", sends, gatewayLatency);
+            System.out.printf("%-9s %10s %9s %9s %9s %8s %9s%n",
+                    "mode", "sends/s", "p50 ms", "p95 ms", "max ms", "+threads", "heap MiB");
+            for (boolean virtual : new boolean[] {false, true}) {
+                Result result = run(gateway, virtual, sends);
+                System.out.printf("%-9s %10.1f %9.1f %9.1f %9.1f %8d %9d%n",
+                        result.mode, result.throughput, result.p50, result.p95, result.max, result.peakThreads, result.peakHeapMiB);
+            }
+        }
+    }
+
+    private static Result run(StubGateway gateway, boolean virtual, int sends) throws Exception {
+        ApacheThreemaTransport transport = gateway.newTransport();
+        ThreemaDispatcher dispatcher = new ThreemaDispatcher(() -> virtual);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        // threads of earlier runs may still be idling, only count the ones this run adds
+        int baselineThreads = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        AtomicLong peakHeap = new AtomicLong();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long[] latencies = new long[sends];
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(sends);
+        long start = System.nanoTime();
+        for (int i = 0; i < sends; i++) {
+            int index = i;
+            String to = String.format("R%07d", i % 1000);
+            futures.add(dispatcher.submit(() -> {
+                try {
+                    return transport.send("*BENCH00", to, "benchmark", "secret").isSuccess();
+                } catch (IOException e) {
+                    return false;
+                } finally {
+                    latencies[index] = System.nanoTime() - start;
+                }
+            }));
+        }
+        int failed = 0;
+        for (CompletableFuture<Boolean> future : futures) {
+            if (!future.get(1, TimeUnit.HOURS)) {
+                failed++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sampler.interrupt();
+        if (failed > 0) {
+            System.out.println(failed + " sends failed");
+        }
+
+        Arrays.sort(latencies);
+        Result result = new Result();
+        result.mode = dispatcher.isVirtual() ? "virtual" : virtual ? "platform*" : "platform";
+        result.throughput = sends / (elapsed / 1e9);
+        result.p50 = NotificationReplay.percentile(latencies, 0.50);
+        result.p95 = NotificationReplay.percentile(latencies, 0.95);
+        result.max = NotificationReplay.percentile(latencies, 1.0);
+        result.peakThreads = threads.getPeakThreadCount() - baselineThreads;
+        result.peakHeapMiB = peakHeap.get() / (1024 * 1024);
+        if (virtual && !dispatcher.isVirtual()) {
+            System.out.println("* virtual threads are not available on this JVM, fell back to platform threads");
+        }
+        return result;
+    }
+
+    private static final class Result {
+        String mode;
+        double throughput;
+        double p50;
+        double p95;
+        double max;
+        int peakThreads;
+        long peakHeapMiB;
+    }
+}
@@ -0,0 +1,68 @@
+package jenkins.plugins.threema;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DurationStatsTest {
+
+    @Test
+    public void noPercentileBeforeFiveSamples() {
+        DurationStats stats = new DurationStats();
+        for (int i = 1; i <= 4; i++) {
+            stats.add(i);
+            assertTrue(Double.isNaN(stats.getP95()));
+        }
+        stats.add(5);
+        assertEquals(5, stats.getCount());
+        assertFalse(Double.isNaN(stats.getP95()));
+    }
+
+    @Test
+    public void meanFollowsRecentBuilds() {
+        DurationStats stats = new DurationStats();
+        for (int i = 0; i < 50; i++) {
+            stats.add(100);
+        }
+        assertEquals(100, stats.getMean(), 1e-9);
+        stats.add(200);
+        assertEquals(120, stats.getMean(), 1e-9);
+        for (int i = 0; i < 50; i++) {
+            stats.add(200);
+        }
+        assertEquals(200, stats.getMean(), 0.01);
+    }
+
+    @Test
+    public void p95OfUniformDurations() {
+        List<Double> samples = new ArrayList<>();
+        for (int i = 1; i <= 10_000; i++) {
+            samples.add((double) i);
+        }
+        Collections.shuffle(samples, new Random(42));
+        DurationStats stats = new DurationStats();
+        for (double sample : samples) {
+            stats.add(sample);
+        }
+        assertEquals(10_000, stats.getCount());
+        assertEquals(9_500, stats.getP95(), 100);
+    }
+
+    @Test
+    public void p95OfSkewedDurations() {
+        // exponential with mean 60s: the 95th percentile is 60 * ln(20)
+        Random random = new Random(7);
+        DurationStats stats = new DurationStats();
+        for (int i = 0; i < 50_000; i++) {
+            stats.add(-60 * Math.log(1 - random.nextDouble()));
+        }
+        assertEquals(60 * Math.log(20), stats.getP95(), 0.05 * 60 * Math.log(20));
+    }
+}
@@ -0,0 +1,76 @@
+package jenkins.plugins.threema;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FailureClassifierTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void lastMatchInTheLogWins() throws IOException {
+        FailureClassifier classifier = FailureClassifier.compile(FailureClassifier.DEFAULT_PATTERNS);
+        File log = log("[INFO] Building\n",
+                "java.lang.OutOfMemoryError: Java heap space\n",
+                "[ERROR] No space left on device\n",
+                "Finished: FAILURE\n");
+        assertEquals("disk full", classifier.classify(log, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void matchingIgnoresAsciiCase() throws IOException {
+        FailureClassifier classifier = FailureClassifier.compile("agent disconnected: Connection was broken");
+        assertEquals("agent disconnected", classifier.classify(log("CONNECTION WAS BROKEN\n"), Long.MAX_VALUE));
+        assertEquals("agent disconnected", classifier.classify(log("connection was broken\n"), Long.MAX_VALUE));
+    }
+
+    @Test
+    public void overlappingPatternsAreFound() throws IOException {
+        FailureClassifier classifier = FailureClassifier.compile("short: abc\nlong: xabcd");
+        assertEquals("long", classifier.classify(log("..xabcd.."), Long.MAX_VALUE));
+        assertEquals("short", classifier.classify(log("..xabcx.."), Long.MAX_VALUE));
+    }
+
+    @Test
+    public void onlyTheBudgetAtTheEndIsRead() throws IOException {
+        FailureClassifier classifier = FailureClassifier.compile(FailureClassifier.DEFAULT_PATTERNS);
+        String cause = "java.lang.OutOfMemoryError\n";
+        String tail = "[INFO] all good\n";
+        File log = log("[INFO] Building\n", cause, tail);
+        assertNull(classifier.classify(log, cause.length() - 1 + tail.length()));
+        assertEquals("OOM", classifier.classify(log, cause.length() + tail.length()));
+    }
+
+    @Test
+    public void commentsAndMalformedLinesAreSkipped() throws IOException {
+        FailureClassifier classifier = FailureClassifier.compile(
+                "# flaky: Connection reset\n\nno label here\n: no label\nempty:\nnetwork: Connection refused\r\n");
+        assertNull(classifier.classify(log("Connection reset\n"), Long.MAX_VALUE));
+        assertNull(classifier.classify(log("no label here\n"), Long.MAX_VALUE));
+        assertEquals("network", classifier.classify(log("Connection refused\n"), Long.MAX_VALUE));
+    }
+
+    @Test
+    public void nothingMatches() throws IOException {
+        FailureClassifier classifier = FailureClassifier.compile(FailureClassifier.DEFAULT_PATTERNS);
+        assertNull(classifier.classify(log("Finished: SUCCESS\n"), Long.MAX_VALUE));
+        assertNull(classifier.classify(new File(tmp.getRoot(), "missing.log"), Long.MAX_VALUE));
+        assertNull(FailureClassifier.compile("").classify(log("java.lang.OutOfMemoryError\n"), Long.MAX_VALUE));
+    }
+
+    private File log(String... lines) throws IOException {
+        File log = tmp.newFile();
+        Files.write(log.toPath(), String.join("", lines).getBytes(StandardCharsets.UTF_8));
+        return log;
+    }
+}
@@ -0,0 +1,69 @@
+package jenkins.plugins.threema;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LongIndexTest {
+
+    @Test
+    public void putReplacesTheValueOfAnExistingKey() {
+        LongIndex<String> index = new LongIndex<>(2);
+        index.put(1, "a");
+        index.put(1, "b");
+        assertEquals("b", index.get(1));
+        assertEquals(1, index.size());
+        assertNull(index.get(2));
+    }
+
+    @Test
+    public void oldestInsertedKeyIsEvicted() {
+        LongIndex<String> index = new LongIndex<>(3);
+        index.put(1, "a");
+        index.put(2, "b");
+        index.put(3, "c");
+        // replacing a value does not make the key younger
+        index.put(1, "a2");
+        index.put(4, "d");
+        assertNull(index.get(1));
+        assertEquals("b", index.get(2));
+        assertEquals("c", index.get(3));
+        assertEquals("d", index.get(4));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void evictionKeepsCollidingKeysReachable() {
+        // few slots and many evictions exercise the backward shift on removal
+        for (int capacity : new int[] {1, 2, 3, 7, 16, 100}) {
+            Random random = new Random(capacity);
+            LongIndex<Long> index = new LongIndex<>(capacity);
+            Map<Long, Long> model = new HashMap<>();
+            Deque<Long> order = new ArrayDeque<>();
+            for (int step = 0; step < 20_000; step++) {
+                long key = random.nextInt(4 * capacity) - capacity;
+                long value = random.nextLong();
+                if (!model.containsKey(key)) {
+                    if (model.size() == capacity) {
+                        model.remove(order.pollFirst());
+                    }
+                    order.addLast(key);
+                }
+                model.put(key, value);
+                index.put(key, value);
+
+                assertEquals(model.size(), index.size());
+                for (long k = -capacity; k < 3 * capacity; k++) {
+                    assertEquals("capacity " + capacity + ", step " + step + ", key " + k, model.get(k), index.get(k));
+                }
+            }
+        }
+    }
+}
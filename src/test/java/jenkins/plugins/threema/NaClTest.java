@@ -0,0 +1,73 @@
+package jenkins.plugins.threema;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/** Uses the {@code crypto_box} test vector from Bernstein, "Cryptography in NaCl", section 10. */
+public class NaClTest {
+
+    private static final byte[] ALICE_SECRET = hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+    private static final byte[] ALICE_PUBLIC = hex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a");
+    private static final byte[] BOB_SECRET = hex("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+    private static final byte[] BOB_PUBLIC = hex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f");
+    private static final byte[] SHARED = hex("1b27556473e985d462cd51197a9a46c76009549eac6474f206c4ee0844f68389");
+    private static final byte[] NONCE = hex("69696ee955b62b73cd62bda875fc73d68219e0036b7a0b37");
+    private static final byte[] MESSAGE = hex(
+            "be075fc53c81f2d5cf141316ebeb0c7b5228c52a4c62cbd44b66849b64244ffc"
+            + "e5ecbaaf33bd751a1ac728d45e6c61296cdc3c01233561f41db66cce314adb31"
+            + "0e3be8250c46f06dceea3a7fa1348057e2f6556ad6b1318a024a838f21af1fde"
+            + "048977eb48f59ffd4924ca1c60902e52f0a089bc76897040e082f93776384864"
+            + "5e0705");
+    private static final byte[] BOX = hex(
+            "f3ffc7703f9400e52a7dfb4b3d3305d9"
+            + "8e993b9f48681273c29650ba32fc76ce48332ea7164d96a4476fb8c531a1186a"
+            + "c0dfc17c98dce87b4da7f011ec48c97271d2c20f9b928fe2270d6fb863d51738"
+            + "b48eeee314a7cc8ab932164548e526ae90224368517acfeabd6bb3732bc0e9da"
+            + "99832b61ca01b6de56244a9e88d5f9b37973f622a43d14a6599b1f654cb45a74"
+            + "e355a5");
+
+    @Test
+    public void sharedKeyIsTheSameOnBothSides() {
+        assertArrayEquals(SHARED, NaCl.sharedKey(BOB_PUBLIC, ALICE_SECRET));
+        assertArrayEquals(SHARED, NaCl.sharedKey(ALICE_PUBLIC, BOB_SECRET));
+    }
+
+    @Test
+    public void boxMatchesTheReferenceVector() {
+        assertArrayEquals(BOX, NaCl.box(MESSAGE, NONCE, BOB_PUBLIC, ALICE_SECRET));
+        assertArrayEquals(BOX, NaCl.secretBox(MESSAGE, NONCE, SHARED));
+    }
+
+    @Test
+    public void openRecoversTheMessage() {
+        assertArrayEquals(MESSAGE, NaCl.open(BOX, NONCE, ALICE_PUBLIC, BOB_SECRET));
+        assertArrayEquals(MESSAGE, NaCl.secretOpen(BOX, NONCE, SHARED));
+        assertArrayEquals(new byte[0], NaCl.secretOpen(NaCl.secretBox(new byte[0], NONCE, SHARED), NONCE, SHARED));
+    }
+
+    @Test
+    public void tamperedBoxesDoNotOpen() {
+        for (int i : new int[] {0, NaCl.MAC_BYTES - 1, NaCl.MAC_BYTES, BOX.length - 1}) {
+            byte[] tampered = BOX.clone();
+            tampered[i] ^= 1;
+            assertNull("byte " + i, NaCl.secretOpen(tampered, NONCE, SHARED));
+        }
+        byte[] nonce = NONCE.clone();
+        nonce[NaCl.NONCE_BYTES - 1] ^= 1;
+        assertNull(NaCl.secretOpen(BOX, nonce, SHARED));
+        assertNull(NaCl.open(BOX, NONCE, ALICE_PUBLIC, ALICE_SECRET));
+        assertNull(NaCl.secretOpen(Arrays.copyOf(BOX, NaCl.MAC_BYTES - 1), NONCE, SHARED));
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
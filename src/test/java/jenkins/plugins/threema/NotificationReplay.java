@@ -0,0 +1,132 @@
+package jenkins.plugins.threema;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a {@link NotificationTrace} against a local stub gateway, to measure throughput, latency and
+ * memory of the send path before an upgrade:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=jenkins.plugins.threema.NotificationReplay -Dexec.args="trace.bin 10 [gatewayLatencyMillis] [virtual]"
+ * </pre>
+ * The second argument is the speed up, e.g. 1, 10 or 100; {@code virtual} dispatches on virtual threads
+ * where the JVM has them. Each event is submitted to
+ * {@link ThreemaDispatcher} with its recorded priority and build, so queueing, aging, superseding and
+ * dropping behave as on the controller, and its recipients are then sent to one after the other through
+ * {@link ApacheThreemaTransport}. The build side (message rendering, credentials, ledger) needs a running
+ * controller and is not replayed. Latency is measured from the time the event was queued.
+ */
+public final class NotificationReplay {
+
+    /** Text size of events recorded without one. */
+    private static final int DEFAULT_TEXT_BYTES = 200;
+
+    private NotificationReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: NotificationReplay <trace> <speedup> [gatewayLatencyMillis] [virtual]");
+            System.exit(2);
+        }
+        File trace = new File(args[0]);
+        double speedup = Double.parseDouble(args[1]);
+        long gatewayLatency = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        boolean virtual = args.length > 3 && "virtual".equals(args[3]);
+
+        StubGateway gateway = new StubGateway(gatewayLatency);
+        ApacheThreemaTransport transport = gateway.newTransport();
+        ThreemaDispatcher dispatcher = new ThreemaDispatcher(() -> virtual);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        List<NotificationTrace.Event> events;
+        try (NotificationTrace.Reader reader = new NotificationTrace.Reader(trace)) {
+            events = reader.readAll();
+        }
+        List<Long> latencies = new ArrayList<>();
+        List<CompletableFuture<?>> submitted = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger dropped = new AtomicInteger();
+        AtomicLong peakHeap = new AtomicLong();
+        int sends = 0;
+        long start = System.nanoTime();
+        long scheduled = 0;
+        for (NotificationTrace.Event event : events) {
+            scheduled += (long) (TimeUnit.MILLISECONDS.toNanos(event.delay) / speedup);
+            long wait = start + scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            String text = text(event.textBytes < 0 ? DEFAULT_TEXT_BYTES : event.textBytes);
+            long due = start + scheduled;
+            submitted.add(dispatcher.submit(event.priority, event.job + "#" + event.build, () -> {
+                for (int recipient : event.recipients) {
+                    try {
+                        if (!transport.send("*REPLAY0", String.format("R%07d", recipient), text, "secret").isSuccess()) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                    synchronized (latencies) {
+                        latencies.add(System.nanoTime() - due);
+                    }
+                }
+                return null;
+            }).whenComplete((ignored, error) -> {
+                if (error instanceof CancellationException || error instanceof RejectedExecutionException) {
+                    dropped.incrementAndGet();
+                }
+            }));
+            sends += event.recipients.length;
+            peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        }
+        for (CompletableFuture<?> future : submitted) {
+            try {
+                future.get();
+            } catch (CancellationException | ExecutionException e) {
+                // counted above
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        gateway.close();
+
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        }
+        Arrays.sort(sorted);
+        System.out.printf("%d events, %d sends, %d failed, %d events dropped or refused in %.1f s at %sx%n",
+                events.size(), sends, failures.get(), dropped.get(), elapsed / 1e9, args[1]);
+        System.out.printf("throughput %.1f sends/s%n", sorted.length / (elapsed / 1e9));
+        System.out.printf("latency ms p50 %.1f, p95 %.1f, p99 %.1f, max %.1f%n",
+                percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        System.out.printf("peak heap %d MiB%n", peakHeap.get() / (1024 * 1024));
+    }
+
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static String text(int bytes) {
+        char[] chars = new char[bytes];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+}
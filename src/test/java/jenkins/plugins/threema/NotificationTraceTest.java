@@ -0,0 +1,139 @@
+package jenkins.plugins.threema;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class NotificationTraceTest {
+
+    @Test
+    public void varintRoundTrip() throws IOException {
+        long[] values = {0, 1, 0x7f, 0x80, 0x3fff, 0x4000, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, Long.MIN_VALUE, -1};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (long value : values) {
+                NotificationTrace.writeVar(out, value);
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            for (long value : values) {
+                assertEquals(value, NotificationTrace.readVar(in));
+            }
+        }
+    }
+
+    @Test
+    public void varintLengths() throws IOException {
+        assertEquals(1, varint(0).length);
+        assertEquals(1, varint(0x7f).length);
+        assertEquals(2, varint(0x80).length);
+        assertEquals(10, varint(-1).length);
+        assertArrayEquals(new byte[] {(byte) 0xac, 0x02}, varint(300));
+    }
+
+    @Test(expected = IOException.class)
+    public void overlongVarintIsRejected() throws IOException {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+        NotificationTrace.readVar(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedVarintIsRejected() throws IOException {
+        NotificationTrace.readVar(new DataInputStream(new ByteArrayInputStream(new byte[] {(byte) 0x80})));
+    }
+
+    @Test
+    public void readsEventsAndTextSizes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(NotificationTrace.MAGIC);
+            out.writeByte(NotificationTrace.VERSION);
+            out.writeLong(1_600_000_000_000L);
+            event(out, 0, NotificationTrace.BUILD_COMPLETED, 0, 17, 2, ThreemaDispatcher.Priority.HIGH, 0, 1);
+            textSize(out, 5, 0, 1234);
+            event(out, 300, NotificationTrace.IN_BUILD, 1, 3, NotificationTrace.NO_RESULT, ThreemaDispatcher.Priority.NORMAL);
+            // refers to an event that is not in the trace, e.g. one cut off by a restart
+            textSize(out, 10, 9, 99);
+        }
+
+        List<NotificationTrace.Event> events;
+        try (NotificationTrace.Reader reader = new NotificationTrace.Reader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            events = reader.readAll();
+        }
+        assertEquals(2, events.size());
+
+        NotificationTrace.Event first = events.get(0);
+        assertEquals(0, first.delay);
+        assertEquals(NotificationTrace.BUILD_COMPLETED, first.kind);
+        assertEquals(0, first.job);
+        assertEquals(17, first.build);
+        assertEquals(2, first.result);
+        assertEquals(ThreemaDispatcher.Priority.HIGH, first.priority);
+        assertArrayEquals(new int[] {0, 1}, first.recipients);
+        assertEquals(1234, first.textBytes);
+
+        NotificationTrace.Event second = events.get(1);
+        // the size record in between only moves the clock
+        assertEquals(305, second.delay);
+        assertEquals(NotificationTrace.IN_BUILD, second.kind);
+        assertEquals(NotificationTrace.NO_RESULT, second.result);
+        assertEquals(ThreemaDispatcher.Priority.NORMAL, second.priority);
+        assertArrayEquals(new int[0], second.recipients);
+        assertEquals(-1, second.textBytes);
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        for (byte[] header : new byte[][] {
+                {'T', 'H', 'T', 'X', NotificationTrace.VERSION},
+                {'T', 'H', 'T', 'R', NotificationTrace.VERSION + 1}}) {
+            try {
+                new NotificationTrace.Reader(new ByteArrayInputStream(Arrays.copyOf(header, header.length + 8))).close();
+                fail("accepted " + Arrays.toString(header));
+            } catch (IOException expected) {
+                // not a trace
+            }
+        }
+    }
+
+    private static void event(DataOutputStream out, long delay, int kind, int job, int build, int result,
+                              ThreemaDispatcher.Priority priority, int... recipients) throws IOException {
+        NotificationTrace.writeVar(out, delay);
+        out.writeByte(kind);
+        NotificationTrace.writeVar(out, job);
+        NotificationTrace.writeVar(out, build);
+        out.writeByte(result);
+        out.writeByte(priority.ordinal());
+        NotificationTrace.writeVar(out, recipients.length);
+        for (int recipient : recipients) {
+            NotificationTrace.writeVar(out, recipient);
+        }
+    }
+
+    private static void textSize(DataOutputStream out, long delay, long event, int textBytes) throws IOException {
+        NotificationTrace.writeVar(out, delay);
+        out.writeByte(NotificationTrace.TEXT_SIZE);
+        NotificationTrace.writeVar(out, event);
+        NotificationTrace.writeVar(out, textBytes);
+    }
+
+    private static byte[] varint(long value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            NotificationTrace.writeVar(out, value);
+        }
+        return bytes.toByteArray();
+    }
+}
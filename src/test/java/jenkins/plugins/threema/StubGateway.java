@@ -0,0 +1,67 @@
+package jenkins.plugins.threema;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for the Threema Gateway for {@link NotificationReplay} and {@link DispatchBenchmark}:
+ * answers every send like the gateway does, with a message ID, after a fixed latency.
+ */
+final class StubGateway implements AutoCloseable {
+
+    private static final int HANDLER_THREADS = 256;
+
+    private final HttpServer server;
+
+    StubGateway(long latencyMillis) throws IOException {
+        // without it small responses wait for delayed ACKs and the stub caps out at ~25 requests/s per connection
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        // the default of 200 makes it close pooled connections the transport still holds when it is given more
+        System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(HANDLER_THREADS));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] drain = new byte[8192];
+                while (in.read(drain) > 0) {
+                    // discard
+                }
+            }
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = String.format("%016x", ThreadLocalRandom.current().nextLong()).getBytes(StandardCharsets.US_ASCII);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // started up front so that the benchmarks only see the threads of the code under test come and go
+        ThreadPoolExecutor handlers = new ThreadPoolExecutor(HANDLER_THREADS, HANDLER_THREADS, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DaemonThreadFactory());
+        handlers.prestartAllCoreThreads();
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /** A transport of its own, so connection pools are not shared between runs. */
+    ApacheThreemaTransport newTransport() {
+        return new ApacheThreemaTransport("http://127.0.0.1:" + server.getAddress().getPort() + "/send_simple", false);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
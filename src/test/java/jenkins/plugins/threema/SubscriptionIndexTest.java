@@ -0,0 +1,83 @@
+package jenkins.plugins.threema;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionIndexTest {
+
+    @Test
+    public void literalGlobMatchesOnlyThatJob() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.add("team/app", "ALICE");
+        assertEquals(set("ALICE"), index.match("team/app"));
+        assertEquals(set(), index.match("team/app2"));
+        assertEquals(set(), index.match("team"));
+        assertEquals(set(), index.match("team/app/main"));
+    }
+
+    @Test
+    public void starAndQuestionMarkStayWithinOneSegment() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.add("team/*", "ALICE");
+        index.add("team/app-?", "BOB");
+        assertEquals(set("ALICE", "BOB"), index.match("team/app-1"));
+        assertEquals(set("ALICE"), index.match("team/app-10"));
+        assertEquals(set(), index.match("team/app-1/main"));
+        assertEquals(set(), index.match("other/app-1"));
+    }
+
+    @Test
+    public void doubleStarMatchesAnyNumberOfSegments() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.add("team/**", "ALICE");
+        index.add("**/main", "BOB");
+        index.add("team/**/release-*", "CAROL");
+        assertEquals(set("ALICE"), index.match("team"));
+        assertEquals(set("ALICE"), index.match("team/app"));
+        assertEquals(set("ALICE", "BOB"), index.match("team/app/main"));
+        assertEquals(set("BOB"), index.match("main"));
+        assertEquals(set("BOB"), index.match("other/deep/main"));
+        assertEquals(set("ALICE", "CAROL"), index.match("team/release-1"));
+        assertEquals(set("ALICE", "CAROL"), index.match("team/a/b/release-2"));
+        assertEquals(set(), index.match("other/release-1"));
+    }
+
+    @Test
+    public void sharedPrefixesCollectEverySubscriber() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.add("team/app", "ALICE");
+        index.add("team/app", "BOB");
+        index.add("/team/app/", "CAROL");
+        assertEquals(set("ALICE", "BOB", "CAROL"), index.match("team/app"));
+    }
+
+    @Test
+    public void emptyIndexMatchesNothing() {
+        assertTrue(SubscriptionIndex.EMPTY.match("team/app").isEmpty());
+    }
+
+    @Test
+    public void segmentPatterns() {
+        assertTrue(SubscriptionIndex.matchesSegment("*", ""));
+        assertTrue(SubscriptionIndex.matchesSegment("*", "app"));
+        assertTrue(SubscriptionIndex.matchesSegment("a*p", "app"));
+        assertTrue(SubscriptionIndex.matchesSegment("a*p*", "application"));
+        assertTrue(SubscriptionIndex.matchesSegment("*-?", "app-1"));
+        assertTrue(SubscriptionIndex.matchesSegment("??", "ab"));
+        assertFalse(SubscriptionIndex.matchesSegment("??", "abc"));
+        assertFalse(SubscriptionIndex.matchesSegment("a*c", "abcd"));
+        assertFalse(SubscriptionIndex.matchesSegment("?", ""));
+    }
+
+    private static Set<String> set(String... subscribers) {
+        return subscribers.length == 0 ? Collections.emptySet() : new HashSet<>(Arrays.asList(subscribers));
+    }
+}
@@ -0,0 +1,156 @@
+package jenkins.plugins.threema;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ThreemaDispatcherTest {
+
+    // the default number of platform threads
+    private static final int THREADS = 8;
+
+    private ThreemaDispatcher dispatcher;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<CompletableFuture<String>> blockers = new ArrayList<>();
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void occupyAllThreads() throws InterruptedException {
+        dispatcher = new ThreemaDispatcher(() -> false);
+        CountDownLatch started = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            blockers.add(dispatcher.submit(ThreemaDispatcher.Priority.HIGH, null, () -> {
+                started.countDown();
+                release.await();
+                return "blocker";
+            }));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(THREADS, dispatcher.getInFlight());
+    }
+
+    @After
+    public void releaseThreads() {
+        release.countDown();
+    }
+
+    @Test
+    public void urgentSendsGoFirst() throws Exception {
+        CountDownLatch releaseOne = new CountDownLatch(1);
+        CompletableFuture<String> gate = submit(ThreemaDispatcher.Priority.HIGH, null, "gate", releaseOne);
+        CompletableFuture<String> low = submit(ThreemaDispatcher.Priority.LOW, null, "low");
+        CompletableFuture<String> normal = submit(ThreemaDispatcher.Priority.NORMAL, null, "normal");
+        CompletableFuture<String> high = submit(ThreemaDispatcher.Priority.HIGH, null, "high");
+
+        // frees one thread: the gate runs there and holds it, the rest are taken in order behind it
+        dispatcher.cancel(blockers.get(0));
+        assertFalse(low.isDone());
+
+        releaseOne.countDown();
+        low.get(10, TimeUnit.SECONDS);
+        assertTrue(gate.isDone() && high.isDone() && normal.isDone());
+        List<String> order = new ArrayList<>(sent);
+        assertEquals(order.toString(), 4, order.size());
+        assertEquals("gate", order.get(0));
+        assertEquals("high", order.get(1));
+        assertEquals("normal", order.get(2));
+        assertEquals("low", order.get(3));
+    }
+
+    @Test
+    public void laterSendOfTheSameBuildSupersedesLowPrioritySend() throws Exception {
+        CompletableFuture<String> start = submit(ThreemaDispatcher.Priority.LOW, "job#1", "start");
+        CompletableFuture<String> other = submit(ThreemaDispatcher.Priority.LOW, "job#2", "other start");
+        CompletableFuture<String> result = submit(ThreemaDispatcher.Priority.HIGH, "job#1", "failure");
+        assertCancelled(start, "superseded");
+        assertFalse(other.isDone());
+        assertEquals(2, dispatcher.getQueued());
+
+        release.countDown();
+        assertEquals("failure", result.get(10, TimeUnit.SECONDS));
+        assertEquals("other start", other.get(10, TimeUnit.SECONDS));
+        assertFalse(sent.contains("start"));
+    }
+
+    @Test
+    public void saturatedQueueDropsTheOldestLowPrioritySend() throws Exception {
+        List<CompletableFuture<String>> lows = new ArrayList<>();
+        for (int i = 0; i < ThreemaDispatcher.CAPACITY; i++) {
+            lows.add(submit(ThreemaDispatcher.Priority.LOW, null, "low " + i));
+        }
+        assertEquals(ThreemaDispatcher.CAPACITY, dispatcher.getQueued());
+        CompletableFuture<String> high = submit(ThreemaDispatcher.Priority.HIGH, null, "high");
+        assertCancelled(lows.get(0), "queue saturated");
+        assertFalse(lows.get(1).isDone());
+        assertEquals(ThreemaDispatcher.CAPACITY, dispatcher.getQueued());
+
+        release.countDown();
+        high.get(10, TimeUnit.SECONDS);
+        CompletableFuture.allOf(lows.subList(1, lows.size()).toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        assertEquals(ThreemaDispatcher.CAPACITY, sent.size());
+    }
+
+    @Test
+    public void cancelRemovesAQueuedSend() throws Exception {
+        CompletableFuture<String> cancelled = submit(ThreemaDispatcher.Priority.NORMAL, null, "cancelled");
+        CompletableFuture<String> kept = submit(ThreemaDispatcher.Priority.NORMAL, null, "kept");
+        dispatcher.cancel(cancelled);
+        assertCancelled(cancelled, "cancelled");
+        assertEquals(1, dispatcher.getQueued());
+
+        release.countDown();
+        kept.get(10, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("kept"), sent);
+    }
+
+    @Test
+    public void cancelInterruptsARunningSend() throws Exception {
+        CompletableFuture<String> blocker = blockers.get(0);
+        dispatcher.cancel(blocker);
+        assertCancelled(blocker, "cancelled");
+        // the interrupted thread picks up the next send
+        assertEquals("next", submit(ThreemaDispatcher.Priority.NORMAL, null, "next").get(10, TimeUnit.SECONDS));
+    }
+
+    private CompletableFuture<String> submit(ThreemaDispatcher.Priority priority, String key, String text) {
+        return submit(priority, key, text, null);
+    }
+
+    private CompletableFuture<String> submit(ThreemaDispatcher.Priority priority, String key, String text, CountDownLatch hold) {
+        return dispatcher.submit(priority, key, () -> {
+            sent.add(text);
+            if (hold != null) {
+                hold.await();
+            }
+            return text;
+        });
+    }
+
+    private static void assertCancelled(CompletableFuture<?> future, String reason) throws InterruptedException {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("not cancelled");
+        } catch (ExecutionException | CancellationException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            assertTrue(String.valueOf(cause), cause instanceof CancellationException);
+            assertEquals(reason, cause.getMessage());
+        } catch (TimeoutException e) {
+            fail("not cancelled");
+        }
+    }
+}